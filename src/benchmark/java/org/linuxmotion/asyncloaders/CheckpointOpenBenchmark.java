@@ -0,0 +1,136 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times {@link DiskLruCache#open} of a cache of {@code entries} entries,
+ * loading its checkpoint and replaying the journal after it, against
+ * replaying the whole journal with the checkpoint deleted.
+ *
+ * <p>The cache classes don't need Android; build this file against them,
+ * jmh-core and jmh-generator-annprocess and run it with JMH's main class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class CheckpointOpenBenchmark {
+  private static final int APP_VERSION = 1;
+
+  @Param({"10000", "100000"})
+  public int entries;
+
+  /** The journal records written after the last checkpoint, which open replays either way. */
+  @Param({"0", "1000"})
+  public int tail;
+
+  private File directory;
+  private File checkpoint;
+  private File checkpointCopy;
+  private DiskLruCache cache;
+
+  @Setup(Level.Trial)
+  public void writeCache() throws IOException {
+    directory = new File(System.getProperty("java.io.tmpdir"), "checkpoint-open-benchmark");
+    if (directory.exists()) {
+      Util.deleteContents(directory);
+    }
+    DiskLruCache cache = DiskLruCache.open(directory, APP_VERSION, 1, Long.MAX_VALUE / 2, options());
+    for (int i = 0; i < entries; i++) {
+      DiskLruCache.Editor editor = cache.edit(AeSimpleSHA1.SHA1("image" + i));
+      editor.set(0, "x");
+      editor.commit();
+    }
+    cache.close(); // Checkpoints.
+
+    checkpoint = new File(directory, DiskLruCache.CHECKPOINT_FILE);
+    checkpointCopy = new File(directory.getParentFile(), "checkpoint-open-benchmark.ckpt");
+    copy(checkpoint, checkpointCopy);
+    // Reads after the checkpoint, which the copy leaves for open to replay.
+    cache = DiskLruCache.open(directory, APP_VERSION, 1, Long.MAX_VALUE / 2, options());
+    for (int i = 0; i < tail; i++) {
+      DiskLruCache.Snapshot snapshot = cache.get(AeSimpleSHA1.SHA1("image" + (i * 7 % entries)));
+      snapshot.close();
+    }
+    cache.close();
+  }
+
+  /** Puts back the checkpoint taken before the tail; closing a cache replaces it. */
+  @Setup(Level.Invocation)
+  public void restoreCheckpoint() throws IOException {
+    copy(checkpointCopy, checkpoint);
+  }
+
+  @Benchmark
+  public DiskLruCache openFromCheckpoint() throws IOException {
+    return cache = DiskLruCache.open(directory, APP_VERSION, 1, Long.MAX_VALUE / 2, options());
+  }
+
+  @Benchmark
+  public DiskLruCache openByFullReplay() throws IOException {
+    if (!checkpoint.delete()) {
+      throw new IOException("checkpoint wasn't restored");
+    }
+    return cache = DiskLruCache.open(directory, APP_VERSION, 1, Long.MAX_VALUE / 2, options());
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeCache() throws IOException {
+    cache.close();
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteCache() throws IOException {
+    Util.deleteContents(directory);
+    directory.delete();
+    checkpointCopy.delete();
+  }
+
+  private static DiskLruCache.Options options() {
+    DiskLruCache.Options options = new DiskLruCache.Options();
+    options.durability = DiskLruCache.Durability.NONE;
+    options.checkpointInterval = 0;
+    options.storage = DiskLruCache.Storage.PACK;
+    return options;
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    InputStream in = new FileInputStream(from);
+    try {
+      OutputStream out = new FileOutputStream(to);
+      try {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          out.write(buffer, 0, count);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
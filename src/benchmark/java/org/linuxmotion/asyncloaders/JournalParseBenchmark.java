@@ -0,0 +1,301 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads a version 1 text journal of {@code lines} records into an entry
+ * table three ways: with the {@code StrictLineReader} and string parsing
+ * {@link DiskLruCache} used before {@link TextJournalReader}, with {@link
+ * TextJournalReader} into a map of key strings, and with {@link
+ * TextJournalReader} straight into a {@link CompactIndex}. Run it with
+ * {@code -prof gc} to compare allocations as well as times.
+ *
+ * <p>The cache classes don't need Android; build this file against them,
+ * jmh-core and jmh-generator-annprocess and run it with JMH's main class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JournalParseBenchmark {
+  private static final int APP_VERSION = 1;
+  private static final int VALUE_COUNT = 1;
+
+  @Param({"10000", "100000", "1000000"})
+  public int lines;
+
+  private File journal;
+
+  /**
+   * Writes a journal that edits, reads and sometimes removes a quarter as
+   * many keys as it has lines, like one a cache has been using for a while.
+   */
+  @Setup(Level.Trial)
+  public void writeJournal() throws IOException {
+    journal = File.createTempFile("journal-parse-benchmark", null);
+    Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(journal), Util.US_ASCII));
+    try {
+      writer.write(DiskLruCache.MAGIC + "\n" + DiskLruCache.VERSION_1 + "\n" + APP_VERSION
+          + "\n" + VALUE_COUNT + "\n\n");
+      int keys = Math.max(1, lines / 4);
+      for (int i = 0; i < lines; i++) {
+        String key = AeSimpleSHA1.SHA1("image" + (i * 7919 % keys));
+        switch (i % 8) {
+          case 0:
+            writer.write("DIRTY " + key + "\n");
+            break;
+          case 1:
+          case 5:
+            writer.write("CLEAN " + key + " " + (4000 + i % 3000) + "\n");
+            break;
+          case 7:
+            writer.write("REMOVE " + key + "\n");
+            break;
+          default:
+            writer.write("READ " + key + "\n");
+            break;
+        }
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void deleteJournal() {
+    journal.delete();
+  }
+
+  /** The parsing {@code DiskLruCache.readJournal} did before this change. */
+  @Benchmark
+  public Map<String, long[]> strictLineReader() throws IOException {
+    Map<String, long[]> entries = new LinkedHashMap<String, long[]>(0, 0.75f, true);
+    StrictLineReader reader = new StrictLineReader(new FileInputStream(journal));
+    try {
+      for (int i = 0; i < 5; i++) {
+        reader.readLine(); // The header.
+      }
+      while (true) {
+        String line;
+        try {
+          line = reader.readLine();
+        } catch (EOFException endOfJournal) {
+          break;
+        }
+        readJournalLine(line, entries);
+      }
+    } finally {
+      reader.close();
+    }
+    return entries;
+  }
+
+  @Benchmark
+  public Map<String, long[]> journalReaderToMap() throws IOException {
+    Map<String, long[]> entries = new LinkedHashMap<String, long[]>(0, 0.75f, true);
+    TextJournalReader reader = new TextJournalReader(
+        new BufferedInputStream(new FileInputStream(journal), 8192), VALUE_COUNT);
+    try {
+      reader.readHeader(APP_VERSION);
+      while (reader.next()) {
+        String key = reader.key();
+        byte op = reader.op();
+        if (op == BinaryJournal.REMOVE) {
+          entries.remove(key);
+          continue;
+        }
+        long[] lengths = entries.get(key);
+        if (lengths == null) {
+          lengths = new long[VALUE_COUNT];
+          entries.put(key, lengths);
+        }
+        if (op == BinaryJournal.CLEAN) {
+          for (int i = 0; i < VALUE_COUNT; i++) {
+            lengths[i] = reader.nextField();
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return entries;
+  }
+
+  @Benchmark
+  public CompactIndex journalReaderToCompactIndex() throws IOException {
+    CompactIndex index = new CompactIndex(VALUE_COUNT);
+    TextJournalReader reader = new TextJournalReader(
+        new BufferedInputStream(new FileInputStream(journal), 8192), VALUE_COUNT);
+    try {
+      reader.readHeader(APP_VERSION);
+      while (reader.next()) {
+        byte[] key = reader.keyBuffer();
+        int keyOffset = reader.keyOffset();
+        byte op = reader.op();
+        int slot = index.find(key, keyOffset);
+        if (op == BinaryJournal.REMOVE) {
+          if (slot != CompactIndex.NONE) {
+            index.remove(slot);
+          }
+          continue;
+        }
+        if (slot == CompactIndex.NONE) {
+          slot = index.insert(key, keyOffset);
+        } else {
+          index.moveToTail(slot);
+        }
+        if (op == BinaryJournal.CLEAN) {
+          index.setReadable(slot, true);
+          index.setDirty(slot, false);
+          for (int i = 0; i < VALUE_COUNT; i++) {
+            index.setLength(slot, i, reader.nextField());
+          }
+        } else if (op == BinaryJournal.DIRTY) {
+          index.setDirty(slot, true);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return index;
+  }
+
+  private static void readJournalLine(String line, Map<String, long[]> entries)
+      throws IOException {
+    int firstSpace = line.indexOf(' ');
+    if (firstSpace == -1) {
+      throw new IOException("unexpected journal line: " + line);
+    }
+    int keyBegin = firstSpace + 1;
+    int secondSpace = line.indexOf(' ', keyBegin);
+    String key;
+    if (secondSpace == -1) {
+      key = line.substring(keyBegin);
+      if (firstSpace == 6 && line.startsWith("REMOVE")) {
+        entries.remove(key);
+        return;
+      }
+    } else {
+      key = line.substring(keyBegin, secondSpace);
+    }
+
+    long[] lengths = entries.get(key);
+    if (lengths == null) {
+      lengths = new long[VALUE_COUNT];
+      entries.put(key, lengths);
+    }
+    if (secondSpace != -1 && firstSpace == 5 && line.startsWith("CLEAN")) {
+      String[] parts = line.substring(secondSpace + 1).split(" ");
+      if (parts.length != VALUE_COUNT) {
+        throw new IOException("unexpected journal line: " + line);
+      }
+      for (int i = 0; i < parts.length; i++) {
+        lengths[i] = Long.parseLong(parts[i]);
+      }
+    } else if (secondSpace == -1 && firstSpace == 5 && line.startsWith("DIRTY")) {
+      // The old code made an editor here.
+    } else if (secondSpace == -1 && firstSpace == 4 && line.startsWith("READ")) {
+      // This work was already done by calling entries.get().
+    } else {
+      throw new IOException("unexpected journal line: " + line);
+    }
+  }
+
+  /**
+   * The line reader the text journal was read with before this change,
+   * reduced to ASCII lines.
+   */
+  static final class StrictLineReader {
+    private static final byte CR = (byte) '\r';
+    private static final byte LF = (byte) '\n';
+
+    private final InputStream in;
+    private byte[] buf = new byte[8192];
+    private int pos;
+    private int end;
+
+    StrictLineReader(InputStream in) {
+      this.in = in;
+    }
+
+    void close() throws IOException {
+      buf = null;
+      in.close();
+    }
+
+    String readLine() throws IOException {
+      if (pos >= end) {
+        fillBuf();
+      }
+      for (int i = pos; i != end; ++i) {
+        if (buf[i] == LF) {
+          int lineEnd = (i != pos && buf[i - 1] == CR) ? i - 1 : i;
+          String res = new String(buf, pos, lineEnd - pos, "US-ASCII");
+          pos = i + 1;
+          return res;
+        }
+      }
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(end - pos + 80) {
+        @Override
+        public String toString() {
+          int length = (count > 0 && buf[count - 1] == CR) ? count - 1 : count;
+          return new String(buf, 0, length, Util.US_ASCII);
+        }
+      };
+      while (true) {
+        out.write(buf, pos, end - pos);
+        end = -1;
+        fillBuf();
+        for (int i = pos; i != end; ++i) {
+          if (buf[i] == LF) {
+            if (i != pos) {
+              out.write(buf, pos, i - pos);
+            }
+            pos = i + 1;
+            return out.toString();
+          }
+        }
+      }
+    }
+
+    private void fillBuf() throws IOException {
+      int result = in.read(buf, 0, buf.length);
+      if (result == -1) {
+        throw new EOFException();
+      }
+      pos = 0;
+      end = result;
+    }
+  }
+}
@@ -0,0 +1,330 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encodes and decodes the binary journal used by {@link DiskLruCache}.
+ *
+ * <p>A binary journal starts with the eight byte {@link #MAGIC} followed by
+ * the format version, the application's version, the value count and a
+ * random id that tells this journal apart from the ones it replaces, each a
+ * varint. The rest of the file is a sequence of records. Each record is a
+ * varint payload length followed by the payload: a one byte op code, the
+ * varint length of the key, the key's ASCII bytes and, for {@link #CLEAN}
+ * records, the varint length of every value. A {@link #CLEAN} record may go on
+ * with one more varint per value: zero if the value is in a file of its own,
+ * or one plus its location in a pack (see {@link PackStore}). Those may be
+ * followed by the entry's expiry time, in milliseconds since the epoch or zero,
+ * and that by one varint per value: zero if its checksum is unknown, or one
+ * plus its CRC32.
+ *
+ * <p>Varints are unsigned little-endian base 128: seven bits per byte with
+ * the high bit set on every byte but the last. A record that is cut short by
+ * the end of the file is the product of an interrupted append; readers report
+ * it through {@link Reader#isTruncated} and ignore it.
+ */
+final class BinaryJournal {
+  /** Never valid as the start of a text journal, and mangled by text-mode copies. */
+  static final byte[] MAGIC = {(byte) 0x89, 'D', 'L', 'R', 'U', '\r', '\n', 0x1a};
+  static final int VERSION = 2;
+
+  static final byte CLEAN = 1;
+  static final byte DIRTY = 2;
+  static final byte REMOVE = 3;
+  static final byte READ = 4;
+
+  /** The longest encoding of a 32 bit value. */
+  private static final int MAX_VARINT32_LENGTH = 5;
+
+  private BinaryJournal() {
+  }
+
+  /** Returns true if {@code header} begins with the binary journal's magic. */
+  static boolean hasMagic(byte[] header, int length) {
+    if (length < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (header[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static void writeHeader(OutputStream out, int appVersion, int valueCount, long journalId)
+      throws IOException {
+    byte[] header = new byte[MAGIC.length + 3 * MAX_VARINT32_LENGTH + 10];
+    System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+    int count = MAGIC.length;
+    count = putVarint(header, count, VERSION);
+    count = putVarint(header, count, appVersion & 0xffffffffL);
+    count = putVarint(header, count, valueCount);
+    count = putVarint(header, count, journalId);
+    out.write(header, 0, count);
+  }
+
+  /** Writes {@code value} at {@code offset} and returns the offset following it. */
+  static int putVarint(byte[] buffer, int offset, long value) {
+    while ((value & ~0x7fL) != 0) {
+      buffer[offset++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buffer[offset++] = (byte) value;
+    return offset;
+  }
+
+  /**
+   * Builds one record at a time into a reusable buffer. The payload is
+   * written after room for the length prefix, which is filled in by {@link
+   * #finish} so that a record never has to be copied.
+   */
+  static final class RecordBuilder {
+    private byte[] buffer = new byte[128];
+    private int start;
+    private int count;
+
+    RecordBuilder begin(byte op, String key) {
+      int keyLength = key.length();
+      ensureCapacity(MAX_VARINT32_LENGTH + 1 + MAX_VARINT32_LENGTH + keyLength);
+      count = MAX_VARINT32_LENGTH;
+      buffer[count++] = op;
+      count = putVarint(buffer, count, keyLength);
+      for (int i = 0; i < keyLength; i++) {
+        buffer[count++] = (byte) key.charAt(i); // Keys are restricted to ASCII.
+      }
+      return this;
+    }
+
+    RecordBuilder varint(long value) {
+      if (value < 0) {
+        throw new IllegalArgumentException("value < 0: " + value);
+      }
+      ensureCapacity(count + 2 * MAX_VARINT32_LENGTH);
+      count = putVarint(buffer, count, value);
+      return this;
+    }
+
+    /** Prepends the length prefix to the record that was just built. */
+    RecordBuilder finish() {
+      int payloadLength = count - MAX_VARINT32_LENGTH;
+      int prefixLength = putVarint(buffer, 0, payloadLength);
+      start = MAX_VARINT32_LENGTH - prefixLength;
+      System.arraycopy(buffer, 0, buffer, start, prefixLength);
+      return this;
+    }
+
+    byte[] buffer() {
+      return buffer;
+    }
+
+    int offset() {
+      return start;
+    }
+
+    int length() {
+      return count - start;
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > buffer.length) {
+        byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        buffer = grown;
+      }
+    }
+  }
+
+  /**
+   * Reads records sequentially from a binary journal. Records are read into
+   * a reusable buffer and a key only becomes a string when asked for.
+   */
+  static final class Reader implements JournalReader {
+    private final InputStream in;
+    private final byte[] buf = new byte[8192];
+    private int pos;
+    private int end;
+    private byte[] record = new byte[128];
+    private int recordLength;
+    private int recordPos;
+    private boolean truncated;
+
+    private byte op;
+    private int keyOffset;
+    private int keyLength;
+    private String key;
+
+    Reader(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * Reads and validates the journal header, returning the journal's id.
+     *
+     * @throws IOException if the header is missing or doesn't match.
+     */
+    long readHeader(int appVersion, int valueCount) throws IOException {
+      byte[] magic = new byte[MAGIC.length];
+      for (int i = 0; i < magic.length; i++) {
+        int b = read();
+        if (b == -1) {
+          throw new EOFException("truncated journal header");
+        }
+        magic[i] = (byte) b;
+      }
+      if (!hasMagic(magic, magic.length)) {
+        throw new IOException("unexpected journal header: not a binary journal");
+      }
+      long version = readStreamVarint();
+      long appVersionRead = readStreamVarint();
+      long valueCountRead = readStreamVarint();
+      if (version != VERSION
+          || appVersionRead != (appVersion & 0xffffffffL)
+          || valueCountRead != valueCount) {
+        throw new IOException("unexpected journal header: [" + version + ", " + appVersionRead
+            + ", " + valueCountRead + "]");
+      }
+      return readStreamVarint();
+    }
+
+    public boolean next() throws IOException {
+      long length;
+      try {
+        int first = read();
+        if (first == -1) {
+          return false;
+        }
+        length = readStreamVarint(first);
+      } catch (EOFException e) {
+        truncated = true;
+        return false;
+      }
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("unexpected journal record length: " + length);
+      }
+      recordLength = (int) length;
+      if (record.length < recordLength) {
+        record = new byte[Math.max(recordLength, record.length * 2)];
+      }
+      for (int read = 0; read < recordLength; ) {
+        if (pos == end && !fill()) {
+          truncated = true;
+          return false;
+        }
+        int count = Math.min(recordLength - read, end - pos);
+        System.arraycopy(buf, pos, record, read, count);
+        pos += count;
+        read += count;
+      }
+
+      recordPos = 0;
+      if (recordLength == 0) {
+        throw new IOException("unexpected empty journal record");
+      }
+      op = record[recordPos++];
+      keyLength = (int) nextField();
+      if (keyLength <= 0 || recordPos + keyLength > recordLength) {
+        throw new IOException("unexpected journal record key length: " + keyLength);
+      }
+      keyOffset = recordPos;
+      key = null;
+      recordPos += keyLength;
+      return true;
+    }
+
+    public boolean isTruncated() {
+      return truncated;
+    }
+
+    public byte op() {
+      return op;
+    }
+
+    public String key() {
+      if (key == null) {
+        key = Util.asciiString(record, keyOffset, keyLength);
+      }
+      return key;
+    }
+
+    public byte[] keyBuffer() {
+      return record;
+    }
+
+    public int keyOffset() {
+      return keyOffset;
+    }
+
+    public int keyLength() {
+      return keyLength;
+    }
+
+    public boolean hasMoreFields() {
+      return recordPos < recordLength;
+    }
+
+    /** Reads the next varint field of the current record. */
+    public long nextField() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        if (recordPos >= recordLength) {
+          throw new IOException("unexpected end of journal record");
+        }
+        byte b = record[recordPos++];
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("malformed varint in journal record");
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+
+    private long readStreamVarint() throws IOException {
+      int first = read();
+      if (first == -1) {
+        throw new EOFException();
+      }
+      return readStreamVarint(first);
+    }
+
+    private long readStreamVarint(int first) throws IOException {
+      long result = first & 0x7f;
+      int b = first;
+      for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+        if (shift >= 64) {
+          throw new IOException("malformed varint in journal");
+        }
+        b = read();
+        if (b == -1) {
+          throw new EOFException();
+        }
+        result |= (long) (b & 0x7f) << shift;
+      }
+      return result;
+    }
+
+    private int read() throws IOException {
+      if (pos == end && !fill()) {
+        return -1;
+      }
+      return buf[pos++] & 0xff;
+    }
+
+    private boolean fill() throws IOException {
+      int result = in.read(buf, 0, buf.length);
+      if (result == -1) {
+        return false;
+      }
+      pos = 0;
+      end = result;
+      return true;
+    }
+  }
+}
@@ -25,6 +25,15 @@ public class BitmapHelper {
     }
 
     public static Bitmap decodeSampledBitmapFromImage(String path, int reqWidth, int reqHeight) throws OutOfMemoryError {
+        return decodeSampledBitmapFromImage(path, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * Decodes the image at {@code path} into a free bitmap of {@code pool}
+     * if one fits, or a new one if none does or the pool is null.
+     */
+    public static Bitmap decodeSampledBitmapFromImage(String path, int reqWidth, int reqHeight,
+                                                      BitmapPool pool) throws OutOfMemoryError {
 
         // First decode with inJustDecodeBounds=true to check dimensions
         final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -38,7 +47,37 @@ public class BitmapHelper {
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
-        return BitmapFactory.decodeFile(path, options);
+        if (pool != null) {
+            pool.prepare(options);
+        }
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            // The pooled bitmap didn't fit after all
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * Scales {@code source} down so that its shorter side is {@code size}
+     * pixels, keeping its aspect ratio.
+     *
+     * @return A new bitmap, or {@code source} itself if it is no larger
+     */
+    public static Bitmap scaleDown(Bitmap source, int size) throws OutOfMemoryError {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final int shorter = Math.min(width, height);
+        if (shorter <= size) {
+            return source;
+        }
+        final float scale = (float) size / shorter;
+        return Bitmap.createScaledBitmap(source, Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), true);
     }
 
     public static int calculateInSampleSize(
@@ -0,0 +1,247 @@
+package org.linuxmotion.asyncloaders;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Keeps bitmaps that are no longer used, so that decoders can decode into
+ * them through {@link BitmapFactory.Options#inBitmap} instead of allocating
+ * new ones.
+ *
+ * A bitmap is in use while anything holds it: the memory cache, a view
+ * showing it, a load that hasn't delivered it yet or a disk cache write.
+ * Every holder {@link #acquire acquires} the bitmap and {@link #release
+ * releases} it when done, and a bitmap joins the pool once its last holder
+ * has released it. Free bitmaps are kept by config and byte count, within
+ * {@link #getMaxSize} bytes; the ones pooled longest ago are dropped first.
+ *
+ * Before Android 4.4 a bitmap can only be reused for an image of exactly its
+ * size, decoded without sampling; from 4.4 any pooled bitmap of at least the
+ * image's byte count will do. Before Android 3.0 nothing is pooled.
+ */
+public class BitmapPool {
+
+    private static final String TAG = BitmapPool.class.getSimpleName();
+    // Build.VERSION_CODES.KITKAT, newer than the SDK this is built against
+    private static final int KITKAT = 19;
+    // A free bitmap is only reused for an image of more than 1 / MAX_OVERSIZE of its bytes
+    private static final int MAX_OVERSIZE = 2;
+
+    private long mMaxSize;
+    private long mSize;
+    // The free bitmaps by config and byte count
+    private final HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> mFree =
+            new HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+    // The free bitmaps, pooled longest ago first
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<Bitmap>();
+    // The holders of each bitmap in use; a bitmap nobody releases is still collected
+    private final WeakHashMap<Bitmap, int[]> mHolds = new WeakHashMap<Bitmap, int[]>();
+
+    /**
+     * @param maxSize The most bytes of free bitmaps kept
+     */
+    public BitmapPool(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+    /** Returns true if this version of Android can decode into a reused bitmap. */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Adds a holder to {@code bitmap}, which isn't reused until every holder
+     * has released it. Takes it back out of the pool if it was free.
+     */
+    public synchronized void acquire(Bitmap bitmap) {
+        final int[] holds = mHolds.get(bitmap);
+        if (holds != null) {
+            holds[0]++;
+            return;
+        }
+        if (mOrder.contains(bitmap)) {
+            remove(bitmap);
+        }
+        mHolds.put(bitmap, new int[]{1});
+    }
+
+    /**
+     * Removes a holder from {@code bitmap}. Once it has none left, it is
+     * pooled for reuse.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        final int[] holds = mHolds.get(bitmap);
+        if (holds == null) {
+            LogWrapper.Loge(TAG, "Released a bitmap that wasn't acquired");
+            return;
+        }
+        if (--holds[0] > 0) {
+            return;
+        }
+        mHolds.remove(bitmap);
+        if (!isSupported() || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+        final int size = sizeOf(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+        final Bitmap.Config config = bitmap.getConfig();
+        TreeMap<Integer, LinkedList<Bitmap>> bySize = mFree.get(config);
+        if (bySize == null) {
+            bySize = new TreeMap<Integer, LinkedList<Bitmap>>();
+            mFree.put(config, bySize);
+        }
+        LinkedList<Bitmap> bucket = bySize.get(size);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            bySize.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mSize += size;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Prepares {@code options}, already filled in by a decode of the image's
+     * bounds, to decode into a free bitmap if one fits. The decoded bitmap is
+     * mutable, so that it can be reused in turn. If the decode throws an
+     * {@link IllegalArgumentException}, the bitmap didn't fit after all:
+     * clear {@link BitmapFactory.Options#inBitmap} and decode again.
+     */
+    public void prepare(BitmapFactory.Options options) {
+        if (!isSupported()) {
+            return;
+        }
+        options.inMutable = true;
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        if (Build.VERSION.SDK_INT < KITKAT && sampleSize != 1) {
+            return;
+        }
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        options.inBitmap = get(width, height, options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Takes a free bitmap that a {@code width} by {@code height} image can be
+     * decoded into out of the pool.
+     *
+     * @return The bitmap, or null if none fits
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final TreeMap<Integer, LinkedList<Bitmap>> bySize = config != null ? mFree.get(config) : null;
+        if (bySize == null || width <= 0 || height <= 0) {
+            return null;
+        }
+        final int size = width * height * bytesPerPixel(config);
+        if (Build.VERSION.SDK_INT < KITKAT) {
+            final LinkedList<Bitmap> bucket = bySize.get(size);
+            if (bucket != null) {
+                for (Bitmap bitmap : bucket) {
+                    if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                        remove(bitmap);
+                        return usable(bitmap);
+                    }
+                }
+            }
+            return null;
+        }
+        final Map.Entry<Integer, LinkedList<Bitmap>> fits = bySize.ceilingEntry(size);
+        if (fits == null || fits.getKey() > (long) size * MAX_OVERSIZE) {
+            return null;
+        }
+        final Bitmap bitmap = fits.getValue().getFirst();
+        remove(bitmap);
+        return usable(bitmap);
+    }
+
+    // Null for a bitmap recycled by hand since it was pooled
+    private static Bitmap usable(Bitmap bitmap) {
+        return bitmap.isRecycled() ? null : bitmap;
+    }
+
+    /**
+     * Drops the free bitmaps pooled longest ago until at most {@code maxSize}
+     * bytes are left. They are left to the garbage collector rather than
+     * recycled, in case something that never acquired them still draws them.
+     */
+    public synchronized void trimToSize(long maxSize) {
+        final Iterator<Bitmap> eldest = mOrder.iterator();
+        while (mSize > maxSize && eldest.hasNext()) {
+            final Bitmap bitmap = eldest.next();
+            eldest.remove();
+            removeFromBucket(bitmap);
+        }
+    }
+
+    /** Drops every free bitmap. Bitmaps in use are pooled as before once released. */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /** Returns the bytes of the free bitmaps. */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /** Changes the most bytes of free bitmaps kept, dropping some if there are more. */
+    public synchronized void setMaxSize(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize < 0");
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    private void remove(Bitmap bitmap) {
+        mOrder.remove(bitmap);
+        removeFromBucket(bitmap);
+    }
+
+    private void removeFromBucket(Bitmap bitmap) {
+        final int size = sizeOf(bitmap);
+        final TreeMap<Integer, LinkedList<Bitmap>> bySize = mFree.get(bitmap.getConfig());
+        final LinkedList<Bitmap> bucket = bySize.get(size);
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            bySize.remove(size);
+        }
+        mSize -= size;
+    }
+
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.linuxmotion.asyncloaders;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts cache events and records latency histograms for {@link
+ * DiskLruCache}, {@link DiskLruImageCache} and {@link ImageLoader}.
+ *
+ * <p>Recording takes no lock and allocates nothing. Every counter, sample
+ * count and histogram bucket is striped: a thread adds to the stripe picked
+ * by its id, so that loader threads don't contend on one cache line, and
+ * reads add up the stripes. A histogram has {@link #BUCKETS} fixed buckets:
+ * bucket {@code b > 0} counts the samples of at least {@code 2^(b-1)} and
+ * less than {@code 2^b} microseconds, bucket zero the samples under one
+ * microsecond and the last bucket everything longer.
+ *
+ * <p>Reads aren't atomic: a report made while events are recorded may
+ * include some of them in one number and not in another.
+ */
+public final class CacheStats {
+  /** Events that are counted. */
+  public enum Counter {
+    /** A bitmap was found in the memory cache. */
+    MEMORY_HIT,
+    /** A bitmap wasn't in the memory cache. */
+    MEMORY_MISS,
+    /** {@link DiskLruCache#get} found a readable entry. */
+    DISK_HIT,
+    /** {@link DiskLruCache#get} found no readable entry. */
+    DISK_MISS,
+    /** An edit of a disk cache entry was committed. */
+    PUT,
+    /** A disk cache entry was evicted to stay within the maximum size. */
+    EVICTION,
+    /** A disk cache journal was compacted in the background to drop its redundant records. */
+    JOURNAL_REBUILD,
+    /** A disk cache value didn't match its checksum and its entry was removed. */
+    CORRUPTION,
+    /** An image was moved from the cold disk tier back to the hot one because it was read. */
+    PROMOTION,
+    /** An image evicted from the hot disk tier was moved to the cold one. */
+    DEMOTION
+  }
+
+  /** Operations whose latencies are recorded. */
+  public enum Latency {
+    /** Looking up a bitmap in the disk cache and opening its value. */
+    DISK_READ,
+    /** Decoding a bitmap read from the disk cache. */
+    DECODE,
+    /** Compressing a bitmap into a disk cache editor. */
+    COMPRESS,
+    /** Committing a compressed bitmap to the disk cache. */
+    COMMIT
+  }
+
+  /** The buckets of each histogram; the last one starts at about four seconds. */
+  public static final int BUCKETS = 24;
+
+  private static final int STRIPES = 8;
+  private static final int COUNTERS = Counter.values().length;
+  private static final int LATENCIES = Latency.values().length;
+  /** A latency's sample count, its total in nanoseconds, then its buckets. */
+  private static final int LATENCY_SLOTS = 2 + BUCKETS;
+  /** Stripes are padded so that two of them never share a cache line. */
+  private static final int STRIPE_LENGTH = (COUNTERS + LATENCIES * LATENCY_SLOTS + 15) & ~7;
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIPE_LENGTH);
+
+  /** Counts one {@code counter} event. */
+  public void increment(Counter counter) {
+    cells.incrementAndGet(stripe() + counter.ordinal());
+  }
+
+  /** Records that an operation took {@code nanos} nanoseconds. */
+  public void record(Latency latency, long nanos) {
+    int base = stripe() + COUNTERS + latency.ordinal() * LATENCY_SLOTS;
+    cells.incrementAndGet(base);
+    cells.addAndGet(base + 1, nanos);
+    cells.incrementAndGet(base + 2 + bucket(nanos));
+  }
+
+  /** Records the time since {@code startNanos}, a {@link System#nanoTime} reading. */
+  public void recordSince(Latency latency, long startNanos) {
+    record(latency, System.nanoTime() - startNanos);
+  }
+
+  public long count(Counter counter) {
+    return sum(counter.ordinal());
+  }
+
+  /** Returns the number of samples recorded for {@code latency}. */
+  public long sampleCount(Latency latency) {
+    return sum(COUNTERS + latency.ordinal() * LATENCY_SLOTS);
+  }
+
+  /** Returns the mean of the samples recorded for {@code latency}, in nanoseconds. */
+  public long meanNanos(Latency latency) {
+    long samples = sampleCount(latency);
+    return samples == 0 ? 0 : sum(COUNTERS + latency.ordinal() * LATENCY_SLOTS + 1) / samples;
+  }
+
+  /** Returns the sample count of every bucket of {@code latency}'s histogram. */
+  public long[] histogram(Latency latency) {
+    long[] histogram = new long[BUCKETS];
+    int base = COUNTERS + latency.ordinal() * LATENCY_SLOTS + 2;
+    for (int b = 0; b < BUCKETS; b++) {
+      histogram[b] = sum(base + b);
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns the upper bound, in microseconds, of the bucket that holds the
+   * {@code quantile} (between 0 and 1) of {@code latency}'s samples, or zero
+   * if there are none. Samples in the last bucket are reported as its lower
+   * bound.
+   */
+  public long quantileMicros(Latency latency, double quantile) {
+    if (quantile < 0 || quantile > 1) {
+      throw new IllegalArgumentException("quantile out of range: " + quantile);
+    }
+    long[] histogram = histogram(latency);
+    long samples = 0;
+    for (long count : histogram) {
+      samples += count;
+    }
+    if (samples == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * samples));
+    long seen = 0;
+    int b = 0;
+    for (; b < BUCKETS - 1; b++) {
+      seen += histogram[b];
+      if (seen >= rank) {
+        break;
+      }
+    }
+    return 1L << (b < BUCKETS - 1 ? b : b - 1);
+  }
+
+  /** Returns the fraction of memory cache lookups that were hits. */
+  public double memoryHitRatio() {
+    return ratio(count(Counter.MEMORY_HIT), count(Counter.MEMORY_MISS));
+  }
+
+  /** Returns the fraction of disk cache lookups that were hits. */
+  public double diskHitRatio() {
+    return ratio(count(Counter.DISK_HIT), count(Counter.DISK_MISS));
+  }
+
+  /** Zeroes every counter and histogram. */
+  public void reset() {
+    for (int i = 0; i < cells.length(); i++) {
+      cells.set(i, 0);
+    }
+  }
+
+  @Override public String toString() {
+    StringBuilder result = new StringBuilder("CacheStats[");
+    for (Counter counter : Counter.values()) {
+      result.append(counter).append('=').append(count(counter)).append(", ");
+    }
+    for (Latency latency : Latency.values()) {
+      result.append(latency)
+          .append("={n=").append(sampleCount(latency))
+          .append(", mean=").append(meanNanos(latency) / 1000)
+          .append("us, p50<").append(quantileMicros(latency, 0.5))
+          .append("us, p99<").append(quantileMicros(latency, 0.99))
+          .append("us}, ");
+    }
+    result.setLength(result.length() - 2);
+    return result.append(']').toString();
+  }
+
+  static int bucket(long nanos) {
+    long micros = nanos / 1000;
+    return Math.min(64 - Long.numberOfLeadingZeros(Math.max(micros, 0)), BUCKETS - 1);
+  }
+
+  private static double ratio(long hits, long misses) {
+    long lookups = hits + misses;
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  private int stripe() {
+    return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_LENGTH;
+  }
+
+  private long sum(int slot) {
+    long sum = 0;
+    for (int s = 0; s < STRIPES; s++) {
+      sum += cells.get(s * STRIPE_LENGTH + slot);
+    }
+    return sum;
+  }
+}
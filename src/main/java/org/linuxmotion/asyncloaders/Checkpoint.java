@@ -0,0 +1,348 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A compact image of a {@link DiskLruCache} segment's entries as of a known
+ * position in its journal. Opening a segment loads its checkpoint and then
+ * replays only the journal records appended after that position.
+ *
+ * <p>A checkpoint file starts with the eight byte {@link #MAGIC} followed by
+ * varints for the format version, the application's version, the value count,
+ * the id of the journal it belongs to, the journal position it reflects, the
+ * next sequence number, the journal's redundant op count and the number of
+ * entries. Each entry is its varint key length, the key's ASCII bytes, a flags
+ * byte, the varint length of each value, the varint location of each value if
+ * {@link #FLAG_PACKED} is set, its varint expiry time if {@link #FLAG_EXPIRES}
+ * is set, one plus the varint checksum of each value (zero if it is unknown)
+ * if {@link #FLAG_CHECKSUMS} is set, and its varint sequence number.
+ * Entries are in least- to most-recently used order. The file ends with the
+ * CRC32 of everything before it, as four big-endian bytes.
+ *
+ * <p>A checkpoint is a hint: if it is missing, damaged or was written for
+ * another journal, the segment falls back to replaying the whole journal.
+ */
+final class Checkpoint {
+  static final byte[] MAGIC = {(byte) 0x89, 'D', 'L', 'C', 'K', '\r', '\n', 0x1a};
+  static final int VERSION = 4;
+
+  /** The entry was being edited; a CLEAN or REMOVE record should follow. */
+  static final int FLAG_DIRTY = 1;
+  /** The entry has been published. */
+  static final int FLAG_READABLE = 2;
+  /** Some of the entry's values are in packs; their locations follow the lengths. */
+  static final int FLAG_PACKED = 4;
+  /** The entry expires; its expiry time follows the locations. */
+  static final int FLAG_EXPIRES = 8;
+  /** The checksums of the entry's values follow its expiry time. */
+  static final int FLAG_CHECKSUMS = 16;
+
+  final long journalId;
+  final long journalPosition;
+  final long nextSequenceNumber;
+  final int redundantOpCount;
+  final int valueCount;
+
+  final String[] keys;
+  final byte[] flags;
+  /** The lengths of entry {@code i}'s values start at {@code i * valueCount}. */
+  final long[] lengths;
+  /** The pack locations of each entry's values, or null for entries without packed values. */
+  final long[][] locations;
+  /** When each entry expires, or zero. */
+  final long[] expiresAt;
+  /** The checksums of each entry's values, or null for entries without known checksums. */
+  final long[][] checksums;
+  final long[] sequenceNumbers;
+  int entryCount;
+
+  Checkpoint(long journalId, long journalPosition, long nextSequenceNumber,
+      int redundantOpCount, int valueCount, int capacity) {
+    this.journalId = journalId;
+    this.journalPosition = journalPosition;
+    this.nextSequenceNumber = nextSequenceNumber;
+    this.redundantOpCount = redundantOpCount;
+    this.valueCount = valueCount;
+    this.keys = new String[capacity];
+    this.flags = new byte[capacity];
+    this.lengths = new long[capacity * valueCount];
+    this.locations = new long[capacity][];
+    this.expiresAt = new long[capacity];
+    this.checksums = new long[capacity][];
+    this.sequenceNumbers = new long[capacity];
+  }
+
+  /**
+   * Appends an entry. Its lengths, locations and checksums are copied from
+   * {@code entryLengths}, {@code entryLocations} and {@code entryChecksums};
+   * the last two may be null.
+   */
+  void add(String key, int entryFlags, long[] entryLengths, long[] entryLocations,
+      long entryExpiresAt, long[] entryChecksums, long sequenceNumber) {
+    int i = entryCount++;
+    keys[i] = key;
+    System.arraycopy(entryLengths, 0, lengths, i * valueCount, valueCount);
+    if (entryLocations != null) {
+      locations[i] = entryLocations.clone();
+      entryFlags |= FLAG_PACKED;
+    }
+    if (entryExpiresAt != 0) {
+      expiresAt[i] = entryExpiresAt;
+      entryFlags |= FLAG_EXPIRES;
+    }
+    if (entryChecksums != null) {
+      checksums[i] = entryChecksums.clone();
+      entryFlags |= FLAG_CHECKSUMS;
+    }
+    flags[i] = (byte) entryFlags;
+    sequenceNumbers[i] = sequenceNumber;
+  }
+
+  /** Builds the journal record that restores entry {@code i} into {@code record}. */
+  void writeRecord(int i, BinaryJournal.RecordBuilder record) {
+    if ((flags[i] & FLAG_DIRTY) != 0) {
+      record.begin(BinaryJournal.DIRTY, keys[i]);
+    } else {
+      record.begin(BinaryJournal.CLEAN, keys[i]);
+      for (int v = 0; v < valueCount; v++) {
+        record.varint(lengths[i * valueCount + v]);
+      }
+      if (locations[i] != null || expiresAt[i] != 0 || checksums[i] != null) {
+        for (int v = 0; v < valueCount; v++) {
+          record.varint(locations[i] != null ? locations[i][v] + 1 : 0);
+        }
+        if (expiresAt[i] != 0 || checksums[i] != null) {
+          record.varint(expiresAt[i]);
+        }
+        if (checksums[i] != null) {
+          for (int v = 0; v < valueCount; v++) {
+            record.varint(checksums[i][v] + 1);
+          }
+        }
+      }
+    }
+    record.finish();
+  }
+
+  /**
+   * Writes this checkpoint to {@code file}, syncing it to the device if
+   * {@code sync} is true.
+   */
+  void writeTo(File file, int appVersion, boolean sync) throws IOException {
+    FileOutputStream fileOut = new FileOutputStream(file);
+    OutputStream out = new BufferedOutputStream(fileOut);
+    CheckedOutputStream checked = new CheckedOutputStream(out, new CRC32());
+    try {
+      byte[] scratch = new byte[64];
+      checked.write(MAGIC);
+      int count = BinaryJournal.putVarint(scratch, 0, VERSION);
+      count = BinaryJournal.putVarint(scratch, count, appVersion & 0xffffffffL);
+      count = BinaryJournal.putVarint(scratch, count, valueCount);
+      count = BinaryJournal.putVarint(scratch, count, journalId);
+      count = BinaryJournal.putVarint(scratch, count, journalPosition);
+      count = BinaryJournal.putVarint(scratch, count, nextSequenceNumber);
+      count = BinaryJournal.putVarint(scratch, count, redundantOpCount);
+      count = BinaryJournal.putVarint(scratch, count, entryCount);
+      checked.write(scratch, 0, count);
+
+      for (int i = 0; i < entryCount; i++) {
+        String key = keys[i];
+        if (scratch.length < key.length() + 26 + 25 * valueCount) {
+          scratch = new byte[key.length() + 26 + 25 * valueCount];
+        }
+        count = BinaryJournal.putVarint(scratch, 0, key.length());
+        for (int c = 0; c < key.length(); c++) {
+          scratch[count++] = (byte) key.charAt(c);
+        }
+        scratch[count++] = flags[i];
+        for (int v = 0; v < valueCount; v++) {
+          count = BinaryJournal.putVarint(scratch, count, lengths[i * valueCount + v]);
+        }
+        if (locations[i] != null) {
+          for (int v = 0; v < valueCount; v++) {
+            count = BinaryJournal.putVarint(scratch, count, locations[i][v] + 1);
+          }
+        }
+        if (expiresAt[i] != 0) {
+          count = BinaryJournal.putVarint(scratch, count, expiresAt[i]);
+        }
+        if (checksums[i] != null) {
+          for (int v = 0; v < valueCount; v++) {
+            count = BinaryJournal.putVarint(scratch, count, checksums[i][v] + 1);
+          }
+        }
+        count = BinaryJournal.putVarint(scratch, count, sequenceNumbers[i]);
+        checked.write(scratch, 0, count);
+      }
+
+      long crc = checked.getChecksum().getValue();
+      out.write((int) (crc >>> 24));
+      out.write((int) (crc >>> 16));
+      out.write((int) (crc >>> 8));
+      out.write((int) crc);
+      out.flush();
+      if (sync) {
+        fileOut.getFD().sync();
+      }
+    } finally {
+      checked.close();
+    }
+  }
+
+  /**
+   * Reads the checkpoint in {@code file}.
+   *
+   * @throws IOException if the file can't be read, is damaged, or was written
+   *     for another application version or value count.
+   */
+  static Checkpoint read(File file, int appVersion, int valueCount) throws IOException {
+    Source in = new Source(new FileInputStream(file));
+    try {
+      for (int i = 0; i < MAGIC.length; i++) {
+        if (in.readByte() != MAGIC[i]) {
+          throw new IOException("unexpected checkpoint header");
+        }
+      }
+      long version = in.readVarint();
+      long appVersionRead = in.readVarint();
+      long valueCountRead = in.readVarint();
+      if (version != VERSION
+          || appVersionRead != (appVersion & 0xffffffffL)
+          || valueCountRead != valueCount) {
+        throw new IOException("unexpected checkpoint header: [" + version + ", "
+            + appVersionRead + ", " + valueCountRead + "]");
+      }
+      long journalId = in.readVarint();
+      long journalPosition = in.readVarint();
+      long nextSequenceNumber = in.readVarint();
+      long redundantOpCount = in.readVarint();
+      long entryCount = in.readVarint();
+      // Every entry takes more than one byte, which bounds a damaged count.
+      if (redundantOpCount > Integer.MAX_VALUE || entryCount > file.length()) {
+        throw new IOException("unexpected checkpoint counts");
+      }
+
+      Checkpoint checkpoint = new Checkpoint(journalId, journalPosition, nextSequenceNumber,
+          (int) redundantOpCount, valueCount, (int) entryCount);
+      for (int i = 0; i < entryCount; i++) {
+        int keyLength = (int) in.readVarint();
+        if (keyLength <= 0 || keyLength > 1024) {
+          throw new IOException("unexpected checkpoint key length: " + keyLength);
+        }
+        checkpoint.keys[i] = in.readAscii(keyLength);
+        checkpoint.flags[i] = in.readByte();
+        for (int v = 0; v < valueCount; v++) {
+          checkpoint.lengths[i * valueCount + v] = in.readVarint();
+        }
+        if ((checkpoint.flags[i] & FLAG_PACKED) != 0) {
+          long[] entryLocations = new long[valueCount];
+          for (int v = 0; v < valueCount; v++) {
+            entryLocations[v] = in.readVarint() - 1;
+          }
+          checkpoint.locations[i] = entryLocations;
+        }
+        if ((checkpoint.flags[i] & FLAG_EXPIRES) != 0) {
+          checkpoint.expiresAt[i] = in.readVarint();
+        }
+        if ((checkpoint.flags[i] & FLAG_CHECKSUMS) != 0) {
+          long[] entryChecksums = new long[valueCount];
+          for (int v = 0; v < valueCount; v++) {
+            entryChecksums[v] = in.readVarint() - 1;
+          }
+          checkpoint.checksums[i] = entryChecksums;
+        }
+        checkpoint.sequenceNumbers[i] = in.readVarint();
+        checkpoint.entryCount++;
+      }
+
+      long expectedCrc = in.checksum();
+      long crc = 0;
+      for (int i = 0; i < 4; i++) {
+        crc = (crc << 8) | (in.readByte() & 0xff);
+      }
+      if (crc != expectedCrc) {
+        throw new IOException("checkpoint checksum mismatch");
+      }
+      return checkpoint;
+    } finally {
+      Util.closeQuietly(in.in);
+    }
+  }
+
+  /**
+   * Buffers a checkpoint file for reading. The CRC is updated a buffer at a
+   * time over the bytes consumed so far rather than byte by byte.
+   */
+  private static final class Source {
+    private final InputStream in;
+    private final byte[] buf = new byte[8192];
+    private final CRC32 crc = new CRC32();
+    private int pos;
+    private int end;
+    /** The start of the consumed bytes that aren't in {@link #crc} yet. */
+    private int mark;
+
+    Source(InputStream in) {
+      this.in = in;
+    }
+
+    byte readByte() throws IOException {
+      if (pos == end) {
+        fill();
+      }
+      return buf[pos++];
+    }
+
+    long readVarint() throws IOException {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw new IOException("malformed varint in checkpoint");
+    }
+
+    String readAscii(int length) throws IOException {
+      if (end - pos >= length) {
+        String result = Util.asciiString(buf, pos, length);
+        pos += length;
+        return result;
+      }
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++) {
+        bytes[i] = readByte();
+      }
+      return Util.asciiString(bytes, 0, length);
+    }
+
+    /** Returns the CRC32 of every byte consumed so far. */
+    long checksum() {
+      crc.update(buf, mark, pos - mark);
+      mark = pos;
+      return crc.getValue();
+    }
+
+    private void fill() throws IOException {
+      crc.update(buf, mark, pos - mark);
+      int result = in.read(buf, 0, buf.length);
+      if (result == -1) {
+        throw new EOFException();
+      }
+      pos = 0;
+      mark = 0;
+      end = result;
+    }
+  }
+}
@@ -0,0 +1,445 @@
+package org.linuxmotion.asyncloaders;
+
+import java.util.Arrays;
+
+/**
+ * Indexes the entries of a {@link DiskLruCache} segment whose keys are 40
+ * character hex digests, such as SHA-1 hashes, in primitive arrays instead of
+ * a map node, an entry object and a key string per entry. Used by caches
+ * opened with {@link DiskLruCache.Index#COMPACT}.
+ *
+ * <p>Every entry has a slot that it keeps until it is removed. A slot holds
+ * the key's 160 bits as two longs and an int, the entry's value lengths,
+ * sequence number and flags, and, once any entry needs them, its pack
+ * locations, expiry time and checksums. Keys are found through an open addressed table
+ * of slot numbers, and slots are linked in least- to most-recently used
+ * order through int links. Key strings are only created by {@link #key}.
+ *
+ * <p>Not thread safe; the owning segment calls it under its lock.
+ */
+final class CompactIndex {
+  /** The slot returned for absent keys, and the end of the LRU list. */
+  static final int NONE = -1;
+  static final int KEY_LENGTH = 40;
+
+  private static final byte FLAG_READABLE = 1;
+  private static final byte FLAG_DIRTY = 2;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final int valueCount;
+
+  // Slot data, indexed by slot or by slot * valueCount + value index.
+  private long[] keyHigh;
+  private long[] keyMiddle;
+  private int[] keyLow;
+  private long[] lengths;
+  private long[] sequenceNumbers;
+  private byte[] flags;
+  /** Pack locations, or null until an entry has a packed value. */
+  private long[] locations;
+  /** Expiry times, or null until an entry expires. */
+  private long[] expiresAt;
+  /** Value checksums, or null until a value has one. */
+  private long[] checksums;
+  private int[] previous;
+  private int[] next;
+
+  /** The least and most recently used slots. */
+  private int head = NONE;
+  private int tail = NONE;
+  /** Removed slots, linked through {@link #next}. */
+  private int free = NONE;
+  /** Slots at or above this have never been used. */
+  private int used;
+  private int size;
+
+  /** Slot numbers plus one, zero for an empty bucket. Kept at most half full. */
+  private int[] table;
+
+  CompactIndex(int valueCount) {
+    this.valueCount = valueCount;
+    clear();
+  }
+
+  /** Returns true if {@code key} can be stored in a compact index. */
+  static boolean isDigest(String key) {
+    if (key.length() != KEY_LENGTH) {
+      return false;
+    }
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      char c = key.charAt(i);
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns true if the {@code length} bytes at {@code offset} can be stored as a key. */
+  static boolean isDigest(byte[] key, int offset, int length) {
+    if (length != KEY_LENGTH) {
+      return false;
+    }
+    for (int i = offset; i < offset + KEY_LENGTH; i++) {
+      byte c = key[i];
+      if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void clear() {
+    int capacity = 16;
+    keyHigh = new long[capacity];
+    keyMiddle = new long[capacity];
+    keyLow = new int[capacity];
+    lengths = new long[capacity * valueCount];
+    sequenceNumbers = new long[capacity];
+    flags = new byte[capacity];
+    locations = null;
+    expiresAt = null;
+    checksums = null;
+    previous = new int[capacity];
+    next = new int[capacity];
+    head = tail = free = NONE;
+    used = 0;
+    size = 0;
+    table = new int[2 * capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns the slot of {@code key}, or {@link #NONE} if it isn't indexed. */
+  int find(String key) {
+    return find(parseHex(key, 0, 16), parseHex(key, 16, 32), (int) parseHex(key, 32, 40));
+  }
+
+  /** Like {@link #find(String)}, for the key's ASCII bytes at {@code offset}. */
+  int find(byte[] key, int offset) {
+    return find(parseHex(key, offset, offset + 16), parseHex(key, offset + 16, offset + 32),
+        (int) parseHex(key, offset + 32, offset + 40));
+  }
+
+  private int find(long high, long middle, int low) {
+    int mask = table.length - 1;
+    for (int bucket = hash(high, middle, low) & mask; ; bucket = (bucket + 1) & mask) {
+      int slot = table[bucket] - 1;
+      if (slot == NONE) {
+        return NONE;
+      }
+      if (keyHigh[slot] == high && keyMiddle[slot] == middle && keyLow[slot] == low) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * Adds {@code key}, which must not be indexed yet, as the most recently
+   * used entry and returns its slot. The new entry isn't readable and has
+   * no values, locations or expiry time.
+   */
+  int insert(String key) {
+    return insert(parseHex(key, 0, 16), parseHex(key, 16, 32), (int) parseHex(key, 32, 40));
+  }
+
+  /** Like {@link #insert(String)}, for the key's ASCII bytes at {@code offset}. */
+  int insert(byte[] key, int offset) {
+    return insert(parseHex(key, offset, offset + 16), parseHex(key, offset + 16, offset + 32),
+        (int) parseHex(key, offset + 32, offset + 40));
+  }
+
+  private int insert(long high, long middle, int low) {
+    if (2 * (size + 1) > table.length) {
+      rehash(2 * table.length);
+    }
+    int slot;
+    if (free != NONE) {
+      slot = free;
+      free = next[slot];
+    } else {
+      if (used == keyHigh.length) {
+        grow(2 * used);
+      }
+      slot = used++;
+    }
+    keyHigh[slot] = high;
+    keyMiddle[slot] = middle;
+    keyLow[slot] = low;
+    Arrays.fill(lengths, slot * valueCount, (slot + 1) * valueCount, 0);
+    if (locations != null) {
+      Arrays.fill(locations, slot * valueCount, (slot + 1) * valueCount, DiskLruCache.IN_FILE);
+    }
+    if (expiresAt != null) {
+      expiresAt[slot] = 0;
+    }
+    if (checksums != null) {
+      Arrays.fill(checksums, slot * valueCount, (slot + 1) * valueCount,
+          DiskLruCache.NO_CHECKSUM);
+    }
+    sequenceNumbers[slot] = 0;
+    flags[slot] = 0;
+    linkLast(slot);
+    addToTable(slot);
+    size++;
+    return slot;
+  }
+
+  void remove(int slot) {
+    removeFromTable(slot);
+    unlink(slot);
+    next[slot] = free;
+    free = slot;
+    size--;
+  }
+
+  /** Makes {@code slot} the most recently used entry. */
+  void moveToTail(int slot) {
+    if (slot != tail) {
+      unlink(slot);
+      linkLast(slot);
+    }
+  }
+
+  /** Returns the least recently used slot, or {@link #NONE} if there are no entries. */
+  int eldest() {
+    return head;
+  }
+
+  /** Returns the slot used after {@code slot}, or {@link #NONE} if it is the most recent. */
+  int after(int slot) {
+    return next[slot];
+  }
+
+  String key(int slot) {
+    char[] key = new char[KEY_LENGTH];
+    putHex(key, 0, 16, keyHigh[slot]);
+    putHex(key, 16, 32, keyMiddle[slot]);
+    putHex(key, 32, 40, keyLow[slot] & 0xffffffffL);
+    return new String(key);
+  }
+
+  boolean isReadable(int slot) {
+    return (flags[slot] & FLAG_READABLE) != 0;
+  }
+
+  void setReadable(int slot, boolean readable) {
+    flags[slot] = (byte) (readable ? flags[slot] | FLAG_READABLE : flags[slot] & ~FLAG_READABLE);
+  }
+
+  /**
+   * Returns true if the journal left the entry being edited. Only used while
+   * the segment is opened; editors of an open segment are tracked by their
+   * entries.
+   */
+  boolean isDirty(int slot) {
+    return (flags[slot] & FLAG_DIRTY) != 0;
+  }
+
+  void setDirty(int slot, boolean dirty) {
+    flags[slot] = (byte) (dirty ? flags[slot] | FLAG_DIRTY : flags[slot] & ~FLAG_DIRTY);
+  }
+
+  long length(int slot, int index) {
+    return lengths[slot * valueCount + index];
+  }
+
+  void setLength(int slot, int index, long length) {
+    lengths[slot * valueCount + index] = length;
+  }
+
+  long sequenceNumber(int slot) {
+    return sequenceNumbers[slot];
+  }
+
+  void setSequenceNumber(int slot, long sequenceNumber) {
+    sequenceNumbers[slot] = sequenceNumber;
+  }
+
+  /** Returns the pack location of a value, or {@link DiskLruCache#IN_FILE}. */
+  long location(int slot, int index) {
+    return locations != null ? locations[slot * valueCount + index] : DiskLruCache.IN_FILE;
+  }
+
+  void setLocation(int slot, int index, long location) {
+    if (locations == null) {
+      if (location == DiskLruCache.IN_FILE) {
+        return;
+      }
+      locations = new long[keyHigh.length * valueCount];
+      Arrays.fill(locations, DiskLruCache.IN_FILE);
+    }
+    locations[slot * valueCount + index] = location;
+  }
+
+  long expiresAt(int slot) {
+    return expiresAt != null ? expiresAt[slot] : 0;
+  }
+
+  void setExpiresAt(int slot, long expiresAtMillis) {
+    if (expiresAt == null) {
+      if (expiresAtMillis == 0) {
+        return;
+      }
+      expiresAt = new long[keyHigh.length];
+    }
+    expiresAt[slot] = expiresAtMillis;
+  }
+
+  /** Returns the checksum of a value, or {@link DiskLruCache#NO_CHECKSUM}. */
+  long checksum(int slot, int index) {
+    return checksums != null ? checksums[slot * valueCount + index] : DiskLruCache.NO_CHECKSUM;
+  }
+
+  void setChecksum(int slot, int index, long checksum) {
+    if (checksums == null) {
+      if (checksum == DiskLruCache.NO_CHECKSUM) {
+        return;
+      }
+      checksums = new long[keyHigh.length * valueCount];
+      Arrays.fill(checksums, DiskLruCache.NO_CHECKSUM);
+    }
+    checksums[slot * valueCount + index] = checksum;
+  }
+
+  private void linkLast(int slot) {
+    previous[slot] = tail;
+    next[slot] = NONE;
+    if (tail != NONE) {
+      next[tail] = slot;
+    } else {
+      head = slot;
+    }
+    tail = slot;
+  }
+
+  private void unlink(int slot) {
+    int before = previous[slot];
+    int after = next[slot];
+    if (before != NONE) {
+      next[before] = after;
+    } else {
+      head = after;
+    }
+    if (after != NONE) {
+      previous[after] = before;
+    } else {
+      tail = before;
+    }
+  }
+
+  private void addToTable(int slot) {
+    int mask = table.length - 1;
+    int bucket = hash(keyHigh[slot], keyMiddle[slot], keyLow[slot]) & mask;
+    while (table[bucket] != 0) {
+      bucket = (bucket + 1) & mask;
+    }
+    table[bucket] = slot + 1;
+  }
+
+  /**
+   * Empties the bucket of {@code slot} and moves later buckets of the same
+   * probe run back, so that lookups never need tombstones.
+   */
+  private void removeFromTable(int slot) {
+    int mask = table.length - 1;
+    int bucket = hash(keyHigh[slot], keyMiddle[slot], keyLow[slot]) & mask;
+    while (table[bucket] != slot + 1) {
+      bucket = (bucket + 1) & mask;
+    }
+    int hole = bucket;
+    for (int i = (hole + 1) & mask; table[i] != 0; i = (i + 1) & mask) {
+      int other = table[i] - 1;
+      int home = hash(keyHigh[other], keyMiddle[other], keyLow[other]) & mask;
+      // Move it if its home bucket isn't in the cyclic range (hole, i].
+      if (((i - home) & mask) >= ((i - hole) & mask)) {
+        table[hole] = table[i];
+        hole = i;
+      }
+    }
+    table[hole] = 0;
+  }
+
+  private void rehash(int tableLength) {
+    table = new int[tableLength];
+    for (int slot = head; slot != NONE; slot = next[slot]) {
+      addToTable(slot);
+    }
+  }
+
+  private void grow(int capacity) {
+    keyHigh = copyOf(keyHigh, capacity);
+    keyMiddle = copyOf(keyMiddle, capacity);
+    keyLow = copyOf(keyLow, capacity);
+    lengths = copyOf(lengths, capacity * valueCount);
+    sequenceNumbers = copyOf(sequenceNumbers, capacity);
+    flags = copyOf(flags, capacity);
+    if (locations != null) {
+      int oldLength = locations.length;
+      locations = copyOf(locations, capacity * valueCount);
+      Arrays.fill(locations, oldLength, locations.length, DiskLruCache.IN_FILE);
+    }
+    if (expiresAt != null) {
+      expiresAt = copyOf(expiresAt, capacity);
+    }
+    if (checksums != null) {
+      int oldLength = checksums.length;
+      checksums = copyOf(checksums, capacity * valueCount);
+      Arrays.fill(checksums, oldLength, checksums.length, DiskLruCache.NO_CHECKSUM);
+    }
+    previous = copyOf(previous, capacity);
+    next = copyOf(next, capacity);
+  }
+
+  // Arrays.copyOf() only exists from Android 2.3.
+  private static long[] copyOf(long[] array, int length) {
+    long[] copy = new long[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+
+  private static int[] copyOf(int[] array, int length) {
+    int[] copy = new int[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+
+  private static byte[] copyOf(byte[] array, int length) {
+    byte[] copy = new byte[length];
+    System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+    return copy;
+  }
+
+  /** The keys are digests already; this only folds their bits together. */
+  private static int hash(long high, long middle, int low) {
+    long h = high ^ middle ^ low;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private static long parseHex(String key, int from, int to) {
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      char c = key.charAt(i);
+      value = (value << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+    }
+    return value;
+  }
+
+  private static long parseHex(byte[] key, int from, int to) {
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      byte c = key[i];
+      value = (value << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+    }
+    return value;
+  }
+
+  private static void putHex(char[] key, int from, int to, long value) {
+    for (int i = to - 1; i >= from; i--) {
+      key[i] = HEX_DIGITS[(int) (value & 0xf)];
+      value >>>= 4;
+    }
+  }
+}
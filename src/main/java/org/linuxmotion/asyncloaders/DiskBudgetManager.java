@@ -0,0 +1,165 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Divides one disk budget between the {@link DiskLruCache caches} it opens,
+ * and runs all of their eviction, compaction and journal syncs on one shared
+ * maintenance thread.
+ *
+ * <p>Every {@link #REBALANCE_INTERVAL_MILLIS} the budget is divided again.
+ * Each open cache is guaranteed {@link #MIN_SHARE} of an even split; the rest
+ * goes to the caches in proportion to their recent hits, as counted by their
+ * {@link DiskLruCache#getStats statistics}. Hits are smoothed over intervals
+ * so that one busy moment doesn't empty the other caches. Caches that share
+ * a {@link CacheStats} are credited with each other's hits.
+ *
+ * <p>A cache that loses budget is trimmed in the background, so the caches
+ * may briefly use more than the budget between a rebalance and their trims.
+ * Closed caches drop out at the next rebalance.
+ */
+public final class DiskBudgetManager {
+  /** How often the budget is divided again. */
+  public static final long REBALANCE_INTERVAL_MILLIS = 30 * 1000;
+  /** The fraction of an even split every cache keeps, however few hits it has. */
+  static final double MIN_SHARE = 0.25;
+  /** The weight of the latest interval's hits in a cache's smoothed hits. */
+  private static final double HIT_SMOOTHING = 0.5;
+
+  private final long totalBytes;
+  private final ScheduledExecutorService scheduler =
+      new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "DiskBudgetManager");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+  /** The open caches, in the order they were opened. Guarded by this. */
+  private final List<Member> members = new ArrayList<Member>();
+  private ScheduledFuture<?> rebalanceFuture;
+
+  private static final class Member {
+    final DiskLruCache cache;
+    long lastHits;
+    double smoothedHits;
+
+    Member(DiskLruCache cache) {
+      this.cache = cache;
+      this.lastHits = cache.getStats().count(CacheStats.Counter.DISK_HIT);
+    }
+  }
+
+  public DiskBudgetManager(long totalBytes) {
+    if (totalBytes <= 0) {
+      throw new IllegalArgumentException("totalBytes <= 0");
+    }
+    this.totalBytes = totalBytes;
+  }
+
+  /**
+   * Opens the cache in {@code directory} with a share of the budget and the
+   * shared maintenance thread. The {@link DiskLruCache.Options#executor} of
+   * {@code options} is replaced.
+   */
+  public synchronized DiskLruCache open(File directory, int appVersion, int valueCount,
+      DiskLruCache.Options options) throws IOException {
+    options.executor = scheduler;
+    long share = Math.max(totalBytes / (members.size() + 1), options.segmentCount);
+    DiskLruCache cache = DiskLruCache.open(directory, appVersion, valueCount, share, options);
+    members.add(new Member(cache));
+    resize();
+    if (rebalanceFuture == null) {
+      rebalanceFuture = scheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          rebalance();
+        }
+      }, REBALANCE_INTERVAL_MILLIS, REBALANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    return cache;
+  }
+
+  /** Returns the budget divided between the caches. */
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  /** Returns the scheduler that runs the maintenance of every cache opened here. */
+  public ScheduledExecutorService getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * Divides the budget between the open caches by their recent hits. Caches
+   * that shrink are resized first, so that the growing ones don't add to
+   * what is already on disk before the others trim.
+   */
+  public synchronized void rebalance() {
+    for (Iterator<Member> i = members.iterator(); i.hasNext(); ) {
+      if (i.next().cache.isClosed()) {
+        i.remove();
+      }
+    }
+    for (Member member : members) {
+      long hits = member.cache.getStats().count(CacheStats.Counter.DISK_HIT);
+      // Statistics that were reset count from zero again.
+      long recent = hits >= member.lastHits ? hits - member.lastHits : hits;
+      member.lastHits = hits;
+      member.smoothedHits = HIT_SMOOTHING * recent + (1 - HIT_SMOOTHING) * member.smoothedHits;
+    }
+    resize();
+  }
+
+  /** Gives every cache its share of the budget by the hits smoothed so far. */
+  private void resize() {
+    if (members.isEmpty()) {
+      return;
+    }
+    double totalHits = 0;
+    for (Member member : members) {
+      totalHits += member.smoothedHits;
+    }
+
+    int count = members.size();
+    long floor = (long) (totalBytes / count * MIN_SHARE);
+    long shared = totalBytes - floor * count;
+    long[] sizes = new long[count];
+    for (int i = 0; i < count; i++) {
+      Member member = members.get(i);
+      double weight = totalHits > 0 ? member.smoothedHits / totalHits : 1.0 / count;
+      sizes[i] = Math.max(floor + (long) (shared * weight), member.cache.segmentCount());
+    }
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < count; i++) {
+        DiskLruCache cache = members.get(i).cache;
+        boolean shrinks = sizes[i] < cache.getMaxSize();
+        if (shrinks == (pass == 0) && sizes[i] != cache.getMaxSize()) {
+          cache.setMaxSize(sizes[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops rebalancing and the shared maintenance thread. Close the caches
+   * first; a cache that is still open can no longer evict or sync.
+   */
+  public synchronized void shutdown() {
+    if (rebalanceFuture != null) {
+      rebalanceFuture.cancel(false);
+      rebalanceFuture = null;
+    }
+    members.clear();
+    scheduler.shutdown();
+  }
+}
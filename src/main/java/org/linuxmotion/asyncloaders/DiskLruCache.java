@@ -1,12 +1,15 @@
 package org.linuxmotion.asyncloaders;
 
-import java.io.BufferedWriter;
-import java.io.Closeable;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,16 +17,34 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -44,6 +65,12 @@ import java.util.regex.Pattern;
  * deleted. The limit does not include filesystem overhead or the cache
  * journal so space-sensitive applications should set a conservative limit.
  *
+ * <p>By default every operation is serialized on a single lock. Opening the
+ * cache with {@link Options#segmentCount} greater than one hashes keys over
+ * independent segments, each with its own entries, journal and share of the
+ * size budget, so that operations on keys in different segments proceed in
+ * parallel.
+ *
  * <p>Clients call {@link #edit} to create or update the values of an entry. An
  * entry may have only one editor at one time; if a value is not available to be
  * edited then {@link #edit} will return null.
@@ -63,6 +90,10 @@ import java.util.regex.Pattern;
  * observe the value at the time that {@link #get} was called. Updates and
  * removals after the call do not impact ongoing reads.
  *
+ * <p>An entry may be given an expiry time with {@link Editor#setExpiresAt} or
+ * {@link Options#timeToLiveMillis}. Once it has passed, {@link #get} treats
+ * the entry as missing and a background sweep removes it.
+ *
  * <p>This class is tolerant of some I/O errors. If files are missing from the
  * filesystem, the corresponding entries will be dropped from the cache. If
  * an error occurs while writing a cache value, the edit will fail silently.
@@ -73,14 +104,28 @@ public final class DiskLruCache implements Closeable {
   static final String JOURNAL_FILE = "journal";
   static final String JOURNAL_FILE_TEMP = "journal.tmp";
   static final String JOURNAL_FILE_BACKUP = "journal.bkp";
+  static final String CHECKPOINT_FILE = "journal.ckpt";
+  static final String CHECKPOINT_FILE_TEMP = "journal.ckpt.tmp";
   static final String MAGIC = "libcore.io.DiskLruCache";
   static final String VERSION_1 = "1";
   static final long ANY_SEQUENCE_NUMBER = -1;
+  private static final long ANY_EXPIRY = -1;
+  /** The location of a value that is stored in a file of its own. */
+  static final long IN_FILE = -1;
+  /** The checksum of a value whose checksum isn't known. */
+  static final long NO_CHECKSUM = -1;
+  /** {@link Verification#SAMPLED} verifies one in this many reads of each segment. */
+  static final int VERIFY_SAMPLE_INTERVAL = 16;
+  /** The number of distinct entries read before their READ records are written. */
+  static final int READ_BATCH_SIZE = 128;
+  /** The most expired entries the sweeper removes per acquisition of a segment's lock. */
+  static final int SWEEP_BATCH_SIZE = 32;
+  /** The most files of removed values deleted per acquisition of a segment's lock. */
+  static final int DELETE_BATCH_SIZE = 64;
+  /** Appended to the name of a cleared cache's directory, which is deleted in the background. */
+  static final String TRASH_SUFFIX = ".trash-";
+  private static final int TRASH_DELETE_TASKS = 4;
   static final Pattern LEGAL_KEY_PATTERN = Pattern.compile("[a-z0-9_-]{1,64}");
-  private static final String CLEAN = "CLEAN";
-  private static final String DIRTY = "DIRTY";
-  private static final String REMOVE = "REMOVE";
-  private static final String READ = "READ";
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -113,62 +158,285 @@ public final class DiskLruCache implements Closeable {
      *   o CLEAN lines track a cache entry that has been successfully published
      *     and may be read. A publish line is followed by the lengths of each of
      *     its values.
-     *   o READ lines track accesses for LRU.
+     *   o READ lines track accesses for LRU. They are written in batches, with
+     *     one line per entry read since the last batch.
      *   o REMOVE lines track entries that have been deleted.
      *
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The text format above is what version 1 of the journal looks like. The
+     * cache now writes the same records in the compact binary format described
+     * in BinaryJournal. A version 1 journal is still read when the cache is
+     * opened, and is then rewritten in the binary format.
+     *
+     * Every so often the state of all entries is written to "journal.ckpt",
+     * along with the journal position it reflects (see Checkpoint). Opening
+     * the cache loads the checkpoint and replays only the records after that
+     * position, falling back to the whole journal if the checkpoint doesn't
+     * belong to it.
+     *
+     * A cache opened with Storage.PACK appends small values to "pack-N.dat"
+     * files (see PackStore) instead of giving each one a file. Their CLEAN
+     * records list each value's location after the lengths; an entry whose
+     * values are all in their own files has no locations. The CLEAN record of
+     * an entry that expires ends with its expiry time, after the locations,
+     * and the record of an entry whose values have checksums ends with them.
      */
 
+  /**
+   * Segmented caches keep each segment in a subdirectory named with this
+   * prefix followed by the segment's index.
+   */
+  static final String SEGMENT_DIR_PREFIX = "s";
+
   private final File directory;
-  private final File journalFile;
-  private final File journalFileTmp;
-  private final File journalFileBackup;
   private final int appVersion;
-  private long maxSize;
   private final int valueCount;
-  private long size = 0;
-  private Writer journalWriter;
-  private final LinkedHashMap<String, Entry> lruEntries =
-      new LinkedHashMap<String, Entry>(0, 0.75f, true);
-  private int redundantOpCount;
+  private long maxSize;
+  private final Segment[] segments;
+  private final Durability durability;
+  private final long syncIntervalMillis;
+  private final int checkpointInterval;
+  private final Storage storage;
+  private final int maxPackedValueSize;
+  private final Eviction eviction;
+  private final int admissionFrequency;
+  private final long timeToLiveMillis;
+  private final Index index;
+  private final CacheStats stats;
+  private final Verification verification;
+  private final EvictionListener evictionListener;
+
+  /** Sizes frequency sketches by assuming entries of about this many bytes. */
+  private static final int TYPICAL_ENTRY_SIZE = 4096;
+
+  /** Source of the ids that tell a journal apart from the ones it replaces. */
+  private static final Random journalIds = new Random();
 
   /**
-   * To differentiate between old and current snapshots, each entry is given
-   * a sequence number each time an edit is committed. A snapshot is stale if
-   * its sequence number is not equal to its entry's sequence number.
+   * This cache uses a single background thread to evict entries and to sync
+   * the journal periodically, unless it was given a scheduler to share with
+   * other caches.
    */
-  private long nextSequenceNumber = 0;
-
-  /** This cache uses a single background thread to evict entries. */
-  final ThreadPoolExecutor executorService =
-      new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-  private final Callable<Void> cleanupCallable = new Callable<Void>() {
-    public Void call() throws Exception {
-      synchronized (DiskLruCache.this) {
-        if (journalWriter == null) {
-          return null; // Closed.
-        }
-        trimToSize();
-        if (journalRebuildRequired()) {
-          rebuildJournal();
-          redundantOpCount = 0;
-        }
-      }
-      return null;
-    }
-  };
+  final ScheduledExecutorService executorService;
+  /** True if {@link #executorService} is this cache's own and is shut down on close. */
+  private final boolean ownsExecutor;
+
+  /**
+   * How hard the cache works to keep its journal on disk.
+   *
+   * <p>Whatever the durability, reads are journaled in batches of up to
+   * {@link #READ_BATCH_SIZE} entries, written when a batch fills up, on the
+   * periodic sync, on {@link #flush} and on {@link #close}. A crash may forget
+   * which entries were read recently, so that they are evicted sooner after
+   * the cache is reopened; it never loses an entry.
+   */
+  public enum Durability {
+    /**
+     * Journal records are handed to the filesystem when enough of them have
+     * been buffered, on {@link #flush} and on {@link #close}, and are never
+     * synced. A crash may lose the most recent edits.
+     */
+    NONE,
+    /**
+     * Like {@link #NONE}, and additionally the journal is written and synced
+     * in the background every {@link Options#syncIntervalMillis}. A crash may
+     * lose the edits made since the last sync.
+     */
+    PERIODIC,
+    /**
+     * {@link Editor#commit} and {@link #remove} don't return until their
+     * journal record has been synced. Concurrent commits share one write and
+     * sync of the journal.
+     */
+    EVERY_COMMIT
+  }
+
+  /** Where the cache keeps the bytes of its values. */
+  public enum Storage {
+    /** Every value is a file of its own, named after its key and index. */
+    FILES,
+    /**
+     * Values up to {@link Options#maxPackedValueSize} are appended to shared
+     * pack files, larger ones are kept in files of their own. Space left by
+     * dropped values is reclaimed by compacting packs in the background.
+     */
+    PACK
+  }
+
+  /** Which entries the cache evicts first when it is over its maximum size. */
+  public enum Eviction {
+    /** The least recently used entry. */
+    LRU,
+    /**
+     * Segmented LRU: entries that were read since they were written are
+     * protected from entries that were written and never read again.
+     */
+    SLRU,
+    /**
+     * Window TinyLFU: like {@link #SLRU}, and additionally a new entry only
+     * displaces an older one if its key has been requested more often.
+     * Resists scans, such as a fling through a long list of images.
+     */
+    TINY_LFU
+  }
+
+  /** How each segment indexes its entries in memory. */
+  public enum Index {
+    /** An access ordered map from each key to an entry object. */
+    MAP,
+    /**
+     * Primitive arrays holding each key's 160 bits, about a quarter of the
+     * heap {@link #MAP} needs per entry. Keys must be 40 character lowercase
+     * hex strings, such as SHA-1 digests, and eviction must be {@link
+     * Eviction#LRU}. Reopening a cache with other keys discards it.
+     */
+    COMPACT
+  }
+
+  /**
+   * Which reads check their values against the CRC32 computed while the
+   * values were written. A value that doesn't match is removed from the cache
+   * and the read of its stream fails with an IOException. Values written
+   * before checksums were recorded are never checked.
+   */
+  public enum Verification {
+    /** Values are never checked. */
+    NONE,
+    /** One in {@link #VERIFY_SAMPLE_INTERVAL} reads of each segment is checked. */
+    SAMPLED,
+    /** Every read is checked. */
+    ALWAYS
+  }
+
+  /**
+   * Receives the entries a cache evicts to stay within its maximum size,
+   * such as to move them to a larger, slower cache.
+   */
+  public interface EvictionListener {
+    /**
+     * Called on a background thread, or the thread calling {@link #flush} or
+     * {@link #close}, with a snapshot of an entry that was just evicted. The
+     * snapshot's values stay readable although the entry is gone; it is
+     * closed when this returns. An {@link IOException} only loses this
+     * entry. A runtime exception is rethrown to the caller of {@code flush}
+     * or {@code close}; on the background thread it is dropped with the
+     * cleanup's result.
+     */
+    void onEvicted(Snapshot snapshot) throws IOException;
+  }
+
+  /** Tuning parameters for {@link #open(File, int, int, long, Options)}. */
+  public static final class Options {
+    /**
+     * The number of independent segments keys are hashed over. Each segment
+     * has its own lock, journal and an equal share of the cache's size.
+     * Changing the segment count of an existing cache discards its contents.
+     */
+    public int segmentCount = 1;
+
+    /** When journal records are forced to disk. */
+    public Durability durability = Durability.PERIODIC;
+
+    /** How often a {@link Durability#PERIODIC} journal is synced. */
+    public long syncIntervalMillis = 1000;
+
+    /**
+     * The number of journal records after which a segment writes a new
+     * checkpoint in the background, or zero to only checkpoint on close.
+     */
+    public int checkpointInterval = 1000;
+
+    /**
+     * Where new values are stored. A cache can be reopened with either
+     * storage; values written with the other one stay readable.
+     */
+    public Storage storage = Storage.FILES;
+
+    /**
+     * The largest value, in bytes, that {@link Storage#PACK} appends to a
+     * pack. Values are buffered in memory up to this size while written.
+     */
+    public int maxPackedValueSize = 64 * 1024;
+
+    /** Which entries are evicted first. */
+    public Eviction eviction = Eviction.LRU;
+
+    /**
+     * How many recent {@link DiskLruCache#get} calls for a key, hits or
+     * misses, {@link DiskLruCache#edit} requires before it creates an entry
+     * for that key; edits of existing entries are always admitted. Keys that
+     * fall short get a null editor, so that values requested only once
+     * don't displace ones that are used again. At most 15; zero admits
+     * every key.
+     */
+    public int admissionFrequency = 0;
+
+    /**
+     * How long an entry lives after a commit that doesn't call {@link
+     * Editor#setExpiresAt}, or zero for entries that don't expire.
+     */
+    public long timeToLiveMillis = 0;
+
+    /** How entries are indexed in memory. */
+    public Index index = Index.MAP;
+
+    /**
+     * Where the cache counts its hits, misses, puts, evictions and journal
+     * rebuilds, or null for statistics of its own.
+     */
+    public CacheStats stats;
+
+    /**
+     * Which reads verify their values' checksums. Verified values are read
+     * through a stream that checks them as they go, so their snapshots have
+     * no {@link Snapshot#getFileDescriptor descriptor} or {@link
+     * Snapshot#getChannel channel}.
+     */
+    public Verification verification = Verification.NONE;
+
+    /** Where evicted entries are handed to, or null to only drop them. */
+    public EvictionListener evictionListener;
+
+    /**
+     * The scheduler that runs the cache's eviction, compaction, journal
+     * syncs and trash deletes, or null for a thread of its own. A shared scheduler lets many
+     * caches make do with one maintenance thread; it isn't shut down when
+     * the cache is closed.
+     */
+    public ScheduledExecutorService executor;
+  }
 
-  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+  private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+      Options options) {
     this.directory = directory;
     this.appVersion = appVersion;
-    this.journalFile = new File(directory, JOURNAL_FILE);
-    this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
-    this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
     this.valueCount = valueCount;
     this.maxSize = maxSize;
+    this.durability = options.durability;
+    this.syncIntervalMillis = options.syncIntervalMillis;
+    this.checkpointInterval = options.checkpointInterval;
+    this.storage = options.storage;
+    this.maxPackedValueSize = options.maxPackedValueSize;
+    this.eviction = options.eviction;
+    this.admissionFrequency = options.admissionFrequency;
+    this.timeToLiveMillis = options.timeToLiveMillis;
+    this.index = options.index;
+    this.stats = options.stats != null ? options.stats : new CacheStats();
+    this.verification = options.verification;
+    this.evictionListener = options.evictionListener;
+    this.ownsExecutor = options.executor == null;
+    this.executorService = ownsExecutor ? newExecutor() : options.executor;
+    this.segments = new Segment[options.segmentCount];
+    for (int i = 0; i < segments.length; i++) {
+      File segmentDirectory = segments.length == 1
+          ? directory
+          : new File(directory, SEGMENT_DIR_PREFIX + i);
+      segments[i] = new Segment(segmentDirectory, segmentMaxSize(maxSize, i));
+    }
   }
 
   /**
@@ -182,187 +450,134 @@ public final class DiskLruCache implements Closeable {
    */
   public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
       throws IOException {
+    return open(directory, appVersion, valueCount, maxSize, new Options());
+  }
+
+  /**
+   * Opens the cache in {@code directory} with the given {@code options},
+   * creating a cache if none exists there.
+   *
+   * @param directory a writable directory
+   * @param valueCount the number of values per cache entry. Must be positive.
+   * @param maxSize the maximum number of bytes this cache should use to store
+   * @param options tuning parameters for the cache
+   * @throws java.io.IOException if reading or writing the cache directory fails
+   */
+  public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+      Options options) throws IOException {
     if (maxSize <= 0) {
       throw new IllegalArgumentException("maxSize <= 0");
     }
     if (valueCount <= 0) {
       throw new IllegalArgumentException("valueCount <= 0");
     }
-
-    // If a bkp file exists, use it instead.
-    File backupFile = new File(directory, JOURNAL_FILE_BACKUP);
-    if (backupFile.exists()) {
-      File journalFile = new File(directory, JOURNAL_FILE);
-      // If journal file also exists just delete backup file.
-      if (journalFile.exists()) {
-        backupFile.delete();
-      } else {
-        renameTo(backupFile, journalFile, false);
-      }
+    if (options.segmentCount <= 0) {
+      throw new IllegalArgumentException("segmentCount <= 0");
     }
-
-    // Prefer to pick up where we left off.
-    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-    if (cache.journalFile.exists()) {
-      try {
-        cache.readJournal();
-        cache.processJournal();
-        cache.journalWriter = new BufferedWriter(
-            new OutputStreamWriter(new FileOutputStream(cache.journalFile, true), Util.US_ASCII));
-        return cache;
-      } catch (IOException journalIsCorrupt) {
-        System.out
-            .println("DiskLruCache "
-                + directory
-                + " is corrupt: "
-                + journalIsCorrupt.getMessage()
-                + ", removing");
-        cache.delete();
-      }
-    }
-
-    // Create a new empty cache.
-    directory.mkdirs();
-    cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-    cache.rebuildJournal();
-    return cache;
-  }
-
-  private void readJournal() throws IOException {
-    StrictLineReader reader = new StrictLineReader(new FileInputStream(journalFile), Util.US_ASCII);
-    try {
-      String magic = reader.readLine();
-      String version = reader.readLine();
-      String appVersionString = reader.readLine();
-      String valueCountString = reader.readLine();
-      String blank = reader.readLine();
-      if (!MAGIC.equals(magic)
-          || !VERSION_1.equals(version)
-          || !Integer.toString(appVersion).equals(appVersionString)
-          || !Integer.toString(valueCount).equals(valueCountString)
-          || !"".equals(blank)) {
-        throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
-            + valueCountString + ", " + blank + "]");
-      }
-
-      int lineCount = 0;
-      while (true) {
-        try {
-          readJournalLine(reader.readLine());
-          lineCount++;
-        } catch (EOFException endOfJournal) {
-          break;
-        }
-      }
-      redundantOpCount = lineCount - lruEntries.size();
-    } finally {
-      Util.closeQuietly(reader);
+    if (maxSize < options.segmentCount) {
+      throw new IllegalArgumentException("maxSize < segmentCount");
     }
-  }
-
-  private void readJournalLine(String line) throws IOException {
-    int firstSpace = line.indexOf(' ');
-    if (firstSpace == -1) {
-      throw new IOException("unexpected journal line: " + line);
+    if (options.durability == null) {
+      throw new NullPointerException("durability == null");
     }
-
-    int keyBegin = firstSpace + 1;
-    int secondSpace = line.indexOf(' ', keyBegin);
-    final String key;
-    if (secondSpace == -1) {
-      key = line.substring(keyBegin);
-      if (firstSpace == REMOVE.length() && line.startsWith(REMOVE)) {
-        lruEntries.remove(key);
-        return;
-      }
-    } else {
-      key = line.substring(keyBegin, secondSpace);
+    if (options.durability == Durability.PERIODIC && options.syncIntervalMillis <= 0) {
+      throw new IllegalArgumentException("syncIntervalMillis <= 0");
     }
-
-    Entry entry = lruEntries.get(key);
-    if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
+    if (options.checkpointInterval < 0) {
+      throw new IllegalArgumentException("checkpointInterval < 0");
+    }
+    if (options.storage == null) {
+      throw new NullPointerException("storage == null");
+    }
+    if (options.maxPackedValueSize < 0) {
+      throw new IllegalArgumentException("maxPackedValueSize < 0");
+    }
+    if (options.timeToLiveMillis < 0) {
+      throw new IllegalArgumentException("timeToLiveMillis < 0");
+    }
+    if (options.eviction == null) {
+      throw new NullPointerException("eviction == null");
+    }
+    if (options.admissionFrequency < 0
+        || options.admissionFrequency > FrequencySketch.MAX_FREQUENCY) {
+      throw new IllegalArgumentException("admissionFrequency out of range: "
+          + options.admissionFrequency);
+    }
+    if (options.index == null) {
+      throw new NullPointerException("index == null");
+    }
+    if (options.index == Index.COMPACT && options.eviction != Eviction.LRU) {
+      throw new IllegalArgumentException("the compact index only supports LRU eviction");
+    }
+    if (options.verification == null) {
+      throw new NullPointerException("verification == null");
     }
 
-    if (secondSpace != -1 && firstSpace == CLEAN.length() && line.startsWith(CLEAN)) {
-      String[] parts = line.substring(secondSpace + 1).split(" ");
-      entry.readable = true;
-      entry.currentEditor = null;
-      entry.setLengths(parts);
-    } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
-      entry.currentEditor = new Editor(entry);
-    } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
-      // This work was already done by calling lruEntries.get().
-    } else {
-      throw new IOException("unexpected journal line: " + line);
+    // A cache written with a different segment count can't be read back.
+    if (directory.exists() && !hasSegmentLayout(directory, options.segmentCount)) {
+      Util.deleteContents(directory);
     }
-  }
 
-  /**
-   * Computes the initial size and collects garbage as a part of opening the
-   * cache. Dirty entries are assumed to be inconsistent and will be deleted.
-   */
-  private void processJournal() throws IOException {
-    deleteIfExists(journalFileTmp);
-    for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
-      Entry entry = i.next();
-      if (entry.currentEditor == null) {
-        for (int t = 0; t < valueCount; t++) {
-          size += entry.lengths[t];
-        }
-      } else {
-        entry.currentEditor = null;
-        for (int t = 0; t < valueCount; t++) {
-          deleteIfExists(entry.getCleanFile(t));
-          deleteIfExists(entry.getDirtyFile(t));
-        }
-        i.remove();
+    DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+    try {
+      for (Segment segment : cache.segments) {
+        segment.open();
       }
+    } catch (IOException e) {
+      cache.close();
+      throw e;
     }
+    // After the segments open, so a corrupt one deletes its files undisturbed.
+    cache.deleteTrash();
+    return cache;
   }
 
   /**
-   * Creates a new journal that omits redundant information. This replaces the
-   * current journal if it exists.
+   * Returns false if {@code directory} holds a cache written with a segment
+   * count other than {@code segmentCount}.
    */
-  private synchronized void rebuildJournal() throws IOException {
-    if (journalWriter != null) {
-      journalWriter.close();
+  private static boolean hasSegmentLayout(File directory, int segmentCount) {
+    if (segmentCount == 1) {
+      return !new File(directory, SEGMENT_DIR_PREFIX + 0).isDirectory();
     }
+    return !new File(directory, JOURNAL_FILE).exists()
+        && !new File(directory, JOURNAL_FILE_BACKUP).exists()
+        && !new File(directory, SEGMENT_DIR_PREFIX + segmentCount).isDirectory();
+  }
 
-    Writer writer = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFileTmp), Util.US_ASCII));
-    try {
-      writer.write(MAGIC);
-      writer.write("\n");
-      writer.write(VERSION_1);
-      writer.write("\n");
-      writer.write(Integer.toString(appVersion));
-      writer.write("\n");
-      writer.write(Integer.toString(valueCount));
-      writer.write("\n");
-      writer.write("\n");
-
-      for (Entry entry : lruEntries.values()) {
-        if (entry.currentEditor != null) {
-          writer.write(DIRTY + ' ' + entry.key + '\n');
-        } else {
-          writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-        }
+  private static ScheduledExecutorService newExecutor() {
+    return new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "DiskLruCache");
+        thread.setDaemon(true);
+        return thread;
       }
-    } finally {
-      writer.close();
-    }
+    });
+  }
 
-    if (journalFile.exists()) {
-      renameTo(journalFile, journalFileBackup, true);
-    }
-    renameTo(journalFileTmp, journalFile, false);
-    journalFileBackup.delete();
+  int segmentCount() {
+    return segments.length;
+  }
+
+  /** Returns the share of {@code maxSize} given to the segment at {@code index}. */
+  private long segmentMaxSize(long maxSize, int index) {
+    long share = maxSize / segments.length;
+    return index < maxSize % segments.length ? share + 1 : share;
+  }
 
-    journalWriter = new BufferedWriter(
-        new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+  private Segment segmentFor(String key) {
+    return segments[segmentIndex(key)];
+  }
+
+  private int segmentIndex(String key) {
+    if (segments.length == 1) {
+      return 0;
+    }
+    // Spread the hash so that keys differing only in their high bits still
+    // land in different segments.
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return (h & 0x7fffffff) % segments.length;
   }
 
   private static void deleteIfExists(File file) throws IOException {
@@ -385,77 +600,147 @@ public final class DiskLruCache implements Closeable {
    * exist is not currently readable. If a value is returned, it is moved to
    * the head of the LRU queue.
    */
-  public synchronized Snapshot get(String key) throws IOException {
-    checkNotClosed();
+  public Snapshot get(String key) throws IOException {
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null) {
-      return null;
-    }
+    return segmentFor(key).get(key);
+  }
 
-    if (!entry.readable) {
-      return null;
-    }
+  /**
+   * Returns true if the entry named {@code key} exists and is readable. Unlike
+   * {@link #get}, this isn't a read: it isn't counted in the stats, journaled
+   * or offered to the admission policy, and no files are opened. An entry
+   * that is removed meanwhile still makes the following {@code get} miss.
+   */
+  public boolean contains(String key) {
+    validateKey(key);
+    return segmentFor(key).contains(key);
+  }
+
+  /**
+   * Returns an editor for the entry named {@code key}, or null if another
+   * edit is in progress.
+   */
+  public Editor edit(String key) throws IOException {
+    return edit(key, ANY_SEQUENCE_NUMBER);
+  }
 
-    // Open all streams eagerly to guarantee that we see a single published
-    // snapshot. If we opened streams lazily then the streams could come
-    // from different edits.
-    InputStream[] ins = new InputStream[valueCount];
+  private Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    validateKey(key);
+    return segmentFor(key).edit(key, expectedSequenceNumber);
+  }
+
+  /**
+   * Returns snapshots of the readable entries among {@code keys}, in the
+   * order of {@code keys}. Keys without a readable entry are left out. Each
+   * segment's lock is taken once for all of its keys, so this is cheaper
+   * than calling {@link #get} for every key. The caller must close the
+   * snapshots.
+   */
+  public Map<String, Snapshot> getAll(Collection<String> keys) throws IOException {
+    List<List<String>> keysBySegment = partition(keys);
+    Map<String, Snapshot> found = new LinkedHashMap<String, Snapshot>();
     try {
-      for (int i = 0; i < valueCount; i++) {
-        ins[i] = new FileInputStream(entry.getCleanFile(i));
-      }
-    } catch (FileNotFoundException e) {
-      // A file must have been deleted manually!
-      for (int i = 0; i < valueCount; i++) {
-        if (ins[i] != null) {
-          Util.closeQuietly(ins[i]);
-        } else {
-          break;
+      for (int i = 0; i < segments.length; i++) {
+        if (keysBySegment.get(i) != null) {
+          segments[i].getAll(keysBySegment.get(i), found);
         }
       }
-      return null;
+    } catch (IOException e) {
+      for (Snapshot snapshot : found.values()) {
+        snapshot.close();
+      }
+      throw e;
     }
+    return inKeyOrder(keys, found);
+  }
 
-    redundantOpCount++;
-    journalWriter.append(READ + ' ' + key + '\n');
-    if (journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+  /**
+   * Returns editors for the entries among {@code keys} that can be edited
+   * now, in the order of {@code keys}. Keys that are being edited already,
+   * or that aren't admitted, are left out. Each segment's lock is taken once
+   * for all of its keys and their DIRTY records are appended together.
+   */
+  public Map<String, Editor> editAll(Collection<String> keys) throws IOException {
+    List<List<String>> keysBySegment = partition(keys);
+    Map<String, Editor> editors = new LinkedHashMap<String, Editor>();
+    try {
+      for (int i = 0; i < segments.length; i++) {
+        if (keysBySegment.get(i) != null) {
+          segments[i].editAll(keysBySegment.get(i), editors);
+        }
+      }
+    } catch (IOException e) {
+      for (Editor editor : editors.values()) {
+        editor.abortUnlessCommitted();
+      }
+      throw e;
     }
-
-    return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+    return inKeyOrder(keys, editors);
   }
 
   /**
-   * Returns an editor for the entry named {@code key}, or null if another
-   * edit is in progress.
+   * Drops the entries for {@code keys} that exist and can be removed. Each
+   * segment's lock is taken once for all of its keys and their REMOVE
+   * records are appended together.
+   *
+   * @return the number of entries removed.
    */
-  public Editor edit(String key) throws IOException {
-    return edit(key, ANY_SEQUENCE_NUMBER);
+  public int removeAll(Collection<String> keys) throws IOException {
+    List<List<String>> keysBySegment = partition(keys);
+    int removed = 0;
+    for (int i = 0; i < segments.length; i++) {
+      if (keysBySegment.get(i) == null) {
+        continue;
+      }
+      Segment segment = segments[i];
+      JournalWriter writer;
+      long position;
+      int segmentRemoved;
+      synchronized (segment) {
+        segmentRemoved = segment.removeAll(keysBySegment.get(i));
+        writer = segment.journalWriter;
+        position = writer.position();
+      }
+      if (segmentRemoved > 0) {
+        removed += segmentRemoved;
+        awaitCommit(writer, position);
+      }
+    }
+    return removed;
   }
 
-  private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-    checkNotClosed();
-    validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
-        || entry.sequenceNumber != expectedSequenceNumber)) {
-      return null; // Snapshot is stale.
-    }
-    if (entry == null) {
-      entry = new Entry(key);
-      lruEntries.put(key, entry);
-    } else if (entry.currentEditor != null) {
-      return null; // Another edit is in progress.
+  /**
+   * Validates {@code keys} and splits them by segment, dropping duplicates.
+   * Segments without keys get null.
+   */
+  private List<List<String>> partition(Collection<String> keys) {
+    List<List<String>> keysBySegment =
+        new ArrayList<List<String>>(Collections.<List<String>>nCopies(segments.length, null));
+    for (String key : new LinkedHashSet<String>(keys)) {
+      validateKey(key);
+      int index = segmentIndex(key);
+      if (keysBySegment.get(index) == null) {
+        keysBySegment.set(index, new ArrayList<String>());
+      }
+      keysBySegment.get(index).add(key);
     }
+    return keysBySegment;
+  }
 
-    Editor editor = new Editor(entry);
-    entry.currentEditor = editor;
+  private static <T> Map<String, T> inKeyOrder(Collection<String> keys, Map<String, T> found) {
+    Map<String, T> result = new LinkedHashMap<String, T>();
+    for (String key : keys) {
+      T value = found.get(key);
+      if (value != null) {
+        result.put(key, value);
+      }
+    }
+    return result;
+  }
 
-    // Flush the journal before creating files to prevent file leaks.
-    journalWriter.write(DIRTY + ' ' + key + '\n');
-    journalWriter.flush();
-    return editor;
+  /** Returns the statistics this cache records. */
+  public CacheStats getStats() {
+    return stats;
   }
 
   /** Returns the directory where this cache stores its data. */
@@ -476,8 +761,13 @@ public final class DiskLruCache implements Closeable {
    * to trim the existing store, if necessary.
    */
   public synchronized void setMaxSize(long maxSize) {
+    if (maxSize < segments.length) {
+      throw new IllegalArgumentException("maxSize < segmentCount");
+    }
     this.maxSize = maxSize;
-    executorService.submit(cleanupCallable);
+    for (int i = 0; i < segments.length; i++) {
+      segments[i].setMaxSize(segmentMaxSize(maxSize, i));
+    }
   }
 
   /**
@@ -485,163 +775,2190 @@ public final class DiskLruCache implements Closeable {
    * this cache. This may be greater than the max size if a background
    * deletion is pending.
    */
-  public synchronized long size() {
-    return size;
-  }
-
-  private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
-    Entry entry = editor.entry;
-    if (entry.currentEditor != editor) {
-      throw new IllegalStateException();
-    }
-
-    // If this edit is creating the entry for the first time, every index must have a value.
-    if (success && !entry.readable) {
-      for (int i = 0; i < valueCount; i++) {
-        if (!editor.written[i]) {
-          editor.abort();
-          throw new IllegalStateException("Newly created entry didn't create value for index " + i);
-        }
-        if (!entry.getDirtyFile(i).exists()) {
-          editor.abort();
-          return;
-        }
-      }
-    }
-
-    for (int i = 0; i < valueCount; i++) {
-      File dirty = entry.getDirtyFile(i);
-      if (success) {
-        if (dirty.exists()) {
-          File clean = entry.getCleanFile(i);
-          dirty.renameTo(clean);
-          long oldLength = entry.lengths[i];
-          long newLength = clean.length();
-          entry.lengths[i] = newLength;
-          size = size - oldLength + newLength;
-        }
-      } else {
-        deleteIfExists(dirty);
-      }
-    }
-
-    redundantOpCount++;
-    entry.currentEditor = null;
-    if (entry.readable | success) {
-      entry.readable = true;
-      journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-      if (success) {
-        entry.sequenceNumber = nextSequenceNumber++;
-      }
-    } else {
-      lruEntries.remove(entry.key);
-      journalWriter.write(REMOVE + ' ' + entry.key + '\n');
-    }
-    journalWriter.flush();
-
-    if (size > maxSize || journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+  public long size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
     }
-  }
-
-  /**
-   * We only rebuild the journal when it will halve the size of the journal
-   * and eliminate at least 2000 ops.
-   */
-  private boolean journalRebuildRequired() {
-    final int redundantOpCompactThreshold = 2000;
-    return redundantOpCount >= redundantOpCompactThreshold //
-        && redundantOpCount >= lruEntries.size();
+    return size;
   }
 
   /**
    * Drops the entry for {@code key} if it exists and can be removed. Entries
-   * actively being edited cannot be removed.
+   * actively being edited cannot be removed. The entry's files are deleted
+   * in the background.
    *
    * @return true if an entry was removed.
    */
-  public synchronized boolean remove(String key) throws IOException {
-    checkNotClosed();
+  public boolean remove(String key) throws IOException {
     validateKey(key);
-    Entry entry = lruEntries.get(key);
-    if (entry == null || entry.currentEditor != null) {
-      return false;
-    }
-
-    for (int i = 0; i < valueCount; i++) {
-      File file = entry.getCleanFile(i);
-      if (!file.delete()) {
-        throw new IOException("failed to delete " + file);
+    Segment segment = segmentFor(key);
+    JournalWriter writer;
+    long position;
+    synchronized (segment) {
+      if (!segment.remove(key)) {
+        return false;
       }
-      size -= entry.lengths[i];
-      entry.lengths[i] = 0;
+      writer = segment.journalWriter;
+      position = writer.position();
     }
+    awaitCommit(writer, position);
+    return true;
+  }
 
-    redundantOpCount++;
-    journalWriter.append(REMOVE + ' ' + key + '\n');
-    lruEntries.remove(key);
-
-    if (journalRebuildRequired()) {
-      executorService.submit(cleanupCallable);
+  /**
+   * Waits for a committed journal record to become durable, if this cache's
+   * durability requires it. Called without holding any segment's lock so
+   * that concurrent commits can share one sync.
+   */
+  private void awaitCommit(JournalWriter writer, long position) throws IOException {
+    if (durability == Durability.EVERY_COMMIT) {
+      writer.await(position, true);
     }
-
-    return true;
   }
 
   /** Returns true if this cache has been closed. */
-  public synchronized boolean isClosed() {
-    return journalWriter == null;
+  public boolean isClosed() {
+    return segments[0].isClosed();
   }
 
-  private void checkNotClosed() {
-    if (journalWriter == null) {
-      throw new IllegalStateException("cache is closed");
+  /** Force buffered operations to the filesystem. */
+  public void flush() throws IOException {
+    for (Segment segment : segments) {
+      segment.flush();
     }
   }
 
-  /** Force buffered operations to the filesystem. */
-  public synchronized void flush() throws IOException {
-    checkNotClosed();
-    trimToSize();
-    journalWriter.flush();
+  /**
+   * Closes this cache. Stored values will remain on the filesystem. If the
+   * {@link EvictionListener} throws, every segment is still closed before
+   * its first exception is rethrown.
+   */
+  public void close() throws IOException {
+    RuntimeException listenerFailure = null;
+    try {
+      for (Segment segment : segments) {
+        segment.close();
+        try {
+          segment.notifyEvicted();
+        } catch (RuntimeException e) {
+          if (listenerFailure == null) {
+            listenerFailure = e;
+          }
+        }
+      }
+    } finally {
+      if (ownsExecutor) {
+        executorService.shutdown();
+      }
+    }
+    if (listenerFailure != null) {
+      throw listenerFailure;
+    }
+  }
+
+  /**
+   * Removes every entry without waiting for their files to be deleted. The
+   * cache's directory is renamed aside and an empty cache is created in its
+   * place while every segment is locked, so the cache stays open throughout.
+   * Where the directory can't be moved, its files are moved into a trash
+   * directory inside it instead. The trash is deleted in the background, or
+   * by the next {@link #open} if the process dies first. Edits in progress
+   * are aborted.
+   */
+  public void clear() throws IOException {
+    clear(0);
+  }
+
+  /** Locks the segments from {@code index} on and clears the cache while they are all held. */
+  private void clear(int index) throws IOException {
+    if (index < segments.length) {
+      Segment segment = segments[index];
+      synchronized (segment) {
+        segment.discard();
+        try {
+          clear(index + 1);
+        } finally {
+          segment.create();
+        }
+      }
+      return;
+    }
+
+    File trash = newTrash(directory.getAbsoluteFile().getParentFile());
+    if (directory.renameTo(trash)) {
+      deleteInBackground(trash);
+      return;
+    }
+
+    // Some filesystems won't move a directory, but will move what's in it.
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("failed to list contents of " + directory);
+    }
+    trash = newTrash(directory);
+    if (!trash.mkdir()) {
+      throw new IOException("failed to create " + trash);
+    }
+    for (File file : files) {
+      if (isTrash(file)) {
+        continue;
+      }
+      if (!file.renameTo(new File(trash, file.getName()))) {
+        if (file.isDirectory()) {
+          Util.deleteContents(file);
+        }
+        if (!file.delete() && file.exists()) {
+          throw new IOException("failed to delete " + file);
+        }
+      }
+    }
+    deleteInBackground(trash);
+  }
+
+  /** Returns an unused trash directory name in {@code parent}. */
+  private File newTrash(File parent) {
+    File trash;
+    do {
+      trash = new File(parent,
+          directory.getName() + TRASH_SUFFIX + (journalIds.nextLong() & Long.MAX_VALUE));
+    } while (trash.exists());
+    return trash;
+  }
+
+  private boolean isTrash(File file) {
+    return file.getName().startsWith(directory.getName() + TRASH_SUFFIX) && file.isDirectory();
+  }
+
+  /**
+   * Deletes the trash that clearing this cache left behind, both beside its
+   * directory and inside it.
+   */
+  private void deleteTrash() {
+    deleteTrashIn(directory.getAbsoluteFile().getParentFile());
+    deleteTrashIn(directory);
+  }
+
+  private void deleteTrashIn(File parent) {
+    File[] files = parent != null ? parent.listFiles() : null;
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (isTrash(file)) {
+        deleteInBackground(file);
+      }
+    }
+  }
+
+  /**
+   * Deletes {@code trash} on the cache's executor as {@link
+   * #TRASH_DELETE_TASKS} tasks, each taking every nth of its files and
+   * directories, so that the cache's other work isn't held up behind one
+   * long delete and a wider executor has several deletes in flight at once.
+   */
+  private void deleteInBackground(final File trash) {
+    final File[] files = trash.listFiles();
+    if (files == null) {
+      return;
+    }
+    final AtomicInteger remaining = new AtomicInteger(TRASH_DELETE_TASKS);
+    for (int t = 0; t < TRASH_DELETE_TASKS; t++) {
+      final int first = t;
+      executorService.execute(new Runnable() {
+        public void run() {
+          for (int i = first; i < files.length; i += TRASH_DELETE_TASKS) {
+            try {
+              if (files[i].isDirectory()) {
+                Util.deleteContents(files[i]);
+              }
+            } catch (IOException e) {
+              // Left for the next open.
+            }
+            files[i].delete();
+          }
+          if (remaining.decrementAndGet() == 0) {
+            trash.delete();
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Closes the cache and deletes all of its stored values. This will delete
+   * all files in the cache directory including files that weren't created by
+   * the cache.
+   */
+  public void delete() throws IOException {
+    close();
+    Util.deleteContents(directory);
   }
 
-  /** Closes this cache. Stored values will remain on the filesystem. */
-  public synchronized void close() throws IOException {
-    if (journalWriter == null) {
-      return; // Already closed.
+  private void validateKey(String key) {
+    if (index == Index.COMPACT) {
+      if (!CompactIndex.isDigest(key)) {
+        throw new IllegalArgumentException(
+            "keys must be 40 character lowercase hex digests: \"" + key + "\"");
+      }
+      return;
+    }
+    Matcher matcher = LEGAL_KEY_PATTERN.matcher(key);
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("keys must match regex [a-z0-9_-]{1,64}: \"" + key + "\"");
+    }
+  }
+
+  /**
+   * An independently locked slice of the cache. A segment owns the entries
+   * whose keys hash to it, their files, its journal and its share of the
+   * cache's maximum size. Every operation on a segment is serialized on the
+   * segment's monitor.
+   */
+  private final class Segment {
+    private final File directory;
+    private final File journalFile;
+    private final File journalFileTmp;
+    private final File journalFileBackup;
+    private final File checkpointFile;
+    private final File checkpointFileTmp;
+    private long maxSize;
+    private long size = 0;
+    private JournalWriter journalWriter;
+    private long journalId;
+    private int recordsSinceCheckpoint;
+    private boolean checkpointPending;
+    private final BinaryJournal.RecordBuilder record = new BinaryJournal.RecordBuilder();
+    /**
+     * While a batch operation runs, finished records are collected here and
+     * appended to the journal together by {@link #appendBatch}.
+     */
+    private boolean batching;
+    private byte[] batch = new byte[256];
+    private int batchLength;
+    private ScheduledFuture<?> syncFuture;
+    /** This segment's packs, or null if none of its values have been packed. */
+    private PackStore packStore;
+    private boolean compactionPending;
+    /** True while {@link #compactJournal} is writing a new journal. */
+    private boolean journalCompacting;
+    /**
+     * The files of removed values and dead packs, which {@link #deleteFiles}
+     * deletes in the background. Their lengths are no longer counted in
+     * {@link #size}. A commit or edit that recreates one of them takes it
+     * back with {@link #keepFile}.
+     */
+    private final LinkedHashSet<File> pendingDeletes = new LinkedHashSet<File>();
+    /** The files of the deleter's batch it hasn't started to delete. */
+    private final HashSet<File> deleting = new HashSet<File>();
+    /** The file the deleter is deleting, while it holds {@link #deleteLock}. */
+    private File unlinking;
+    private final ReentrantLock deleteLock = new ReentrantLock();
+    private boolean deletionScheduled;
+    /** Keys whose REMOVE records were replayed, while the segment is opened. */
+    private HashSet<String> removedKeys;
+    /** The entries in access order, unless they are kept in {@link #compactIndex}. */
+    private final LinkedHashMap<String, Entry> lruEntries =
+        new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /** The entries, or null if they are kept in {@link #lruEntries}. */
+    private final CompactIndex compactIndex;
+    /**
+     * The entries of a compact index that are being edited or have a pending
+     * READ record. Editors and {@link #pendingReads} hold on to these, so
+     * lookups return them until they are saved with neither. Any other
+     * entry is a copy of its slot, made by {@link #entryAt} and written back
+     * by {@link #saveEntry}.
+     */
+    private final HashMap<String, Entry> pinned;
+    private int redundantOpCount;
+    /** Recent requests by key, or null if neither eviction nor admission needs them. */
+    private final FrequencySketch sketch;
+    /** Chooses victims among the readable entries, or null to evict in LRU order. */
+    private EvictionPolicy policy;
+
+    /**
+     * Entries that expire, soonest first. An element is stale once its
+     * entry's expiry time changes, which includes the entry being removed.
+     */
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>();
+    private ScheduledFuture<?> sweepFuture;
+    /** When {@link #sweepFuture} runs, or {@code Long.MAX_VALUE} if it isn't scheduled. */
+    private long sweepAt = Long.MAX_VALUE;
+
+    /**
+     * Entries read since READ records were last written, each listed once.
+     * Repeated reads of an entry only update its {@link Entry#lastRead}.
+     */
+    private final ArrayList<Entry> pendingReads = new ArrayList<Entry>();
+    private long readClock;
+    /** Snapshots of evicted entries waiting for the {@link EvictionListener}. */
+    private final ArrayList<Snapshot> evicted = new ArrayList<Snapshot>();
+    /** Reads since {@link Verification#SAMPLED} last verified one. */
+    private int readsSinceVerify;
+    private final Comparator<Entry> readOrder = new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return a.lastRead < b.lastRead ? -1 : (a.lastRead == b.lastRead ? 0 : 1);
+      }
+    };
+
+    /**
+     * To differentiate between old and current snapshots, each entry is given
+     * a sequence number each time an edit is committed. A snapshot is stale if
+     * its sequence number is not equal to its entry's sequence number.
+     */
+    private long nextSequenceNumber = 0;
+
+    private final Callable<Void> cleanupCallable = new Callable<Void>() {
+      public Void call() throws Exception {
+        boolean rebuild;
+        synchronized (Segment.this) {
+          if (journalWriter == null) {
+            return null; // Closed.
+          }
+          trimToSize();
+          rebuild = journalRebuildRequired();
+        }
+        try {
+          notifyEvicted();
+        } finally {
+          if (rebuild) {
+            compactJournal();
+          }
+        }
+        return null;
+      }
+    };
+
+    private final Callable<Void> checkpointCallable = new Callable<Void>() {
+      public Void call() throws Exception {
+        writeCheckpoint();
+        return null;
+      }
+    };
+
+    private final Callable<Void> deleteCallable = new Callable<Void>() {
+      public Void call() throws Exception {
+        deleteFiles();
+        return null;
+      }
+    };
+
+    private final Callable<Void> compactionCallable = new Callable<Void>() {
+      public Void call() throws Exception {
+        compactPacks();
+        return null;
+      }
+    };
+
+    private final Callable<Void> sweepCallable = new Callable<Void>() {
+      public Void call() throws Exception {
+        Thread thread = Thread.currentThread();
+        int priority = thread.getPriority();
+        thread.setPriority(Thread.MIN_PRIORITY);
+        try {
+          sweep();
+        } finally {
+          thread.setPriority(priority);
+        }
+        return null;
+      }
+    };
+
+    private final Runnable syncRunnable = new Runnable() {
+      public void run() {
+        JournalWriter writer;
+        PackStore packs;
+        try {
+          synchronized (Segment.this) {
+            writer = journalWriter;
+            packs = packStore;
+            if (writer == null) {
+              return; // Closed.
+            }
+            drainReads();
+          }
+          if (packs != null) {
+            // Values before the records that point at them.
+            packs.sync();
+          }
+          writer.sync();
+        } catch (IOException e) {
+          // The journal was closed or rebuilt under us, or the disk failed. The
+          // next commit will surface a persistent failure.
+        }
+      }
+    };
+
+    private Segment(File directory, long maxSize) {
+      this.directory = directory;
+      this.journalFile = new File(directory, JOURNAL_FILE);
+      this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
+      this.journalFileBackup = new File(directory, JOURNAL_FILE_BACKUP);
+      this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+      this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TEMP);
+      this.maxSize = maxSize;
+      this.compactIndex = index == Index.COMPACT ? new CompactIndex(valueCount) : null;
+      this.pinned = index == Index.COMPACT ? new HashMap<String, Entry>() : null;
+      this.sketch = eviction == Eviction.TINY_LFU || admissionFrequency > 0
+          ? new FrequencySketch((int) Math.min(maxSize / TYPICAL_ENTRY_SIZE, Integer.MAX_VALUE))
+          : null;
+    }
+
+    /**
+     * Loads this segment's journal, creating an empty segment if there is no
+     * journal or if it is corrupt.
+     */
+    private synchronized void open() throws IOException {
+      // If a bkp file exists, use it instead.
+      if (journalFileBackup.exists()) {
+        // If journal file also exists just delete backup file.
+        if (journalFile.exists()) {
+          journalFileBackup.delete();
+        } else {
+          renameTo(journalFileBackup, journalFile, false);
+        }
+      }
+
+      // Prefer to pick up where we left off.
+      if (journalFile.exists()) {
+        try {
+          removedKeys = new HashSet<String>();
+          boolean rebuild = readJournal();
+          processJournal();
+          removedKeys = null;
+          openPackStore();
+          initPolicy();
+          if (rebuild) {
+            rebuildJournal();
+          } else {
+            journalWriter = new JournalWriter(journalFile);
+          }
+          scheduleSync();
+          return;
+        } catch (IOException journalIsCorrupt) {
+          System.out
+              .println("DiskLruCache "
+                  + directory
+                  + " is corrupt: "
+                  + journalIsCorrupt.getMessage()
+                  + ", removing");
+          Util.deleteContents(directory);
+          removedKeys = null;
+          pendingDeletes.clear();
+          clearEntries();
+          size = 0;
+          redundantOpCount = 0;
+          packStore = null;
+        }
+      }
+
+      create();
+    }
+
+    /** Creates a new empty segment. */
+    private void create() throws IOException {
+      directory.mkdirs();
+      openPackStore();
+      initPolicy();
+      rebuildJournal();
+      scheduleSync();
+    }
+
+    /**
+     * Aborts the edits in progress and forgets every entry, leaving the
+     * segment closed until {@link #create} is called. The files are left to
+     * the caller to move aside.
+     */
+    private void discard() throws IOException {
+      checkNotClosed();
+      for (Entry entry : editedEntries()) {
+        entry.currentEditor.abort();
+      }
+      if (syncFuture != null) {
+        syncFuture.cancel(false);
+        syncFuture = null;
+      }
+      if (sweepFuture != null) {
+        sweepFuture.cancel(false);
+        sweepFuture = null;
+        sweepAt = Long.MAX_VALUE;
+      }
+      try {
+        if (packStore != null) {
+          packStore.close();
+        }
+      } finally {
+        packStore = null;
+        journalWriter.close(false);
+        journalWriter = null;
+      }
+      for (Entry entry : pendingReads) {
+        entry.readPending = false;
+      }
+      pendingReads.clear();
+      // Their paths will name the new segment's files.
+      pendingDeletes.clear();
+      for (Snapshot snapshot : evicted) {
+        snapshot.close();
+      }
+      evicted.clear();
+      clearEntries();
+      size = 0;
+      redundantOpCount = 0;
+    }
+
+    /**
+     * Opens this segment's packs if it has packed values or packs new ones,
+     * and schedules a compaction if they left space behind.
+     */
+    private void openPackStore() throws IOException {
+      if (storage == Storage.PACK && packStore == null) {
+        packStore = new PackStore(directory);
+      }
+      if (packStore != null) {
+        packStore.open();
+        if (packStore.compactionCandidates().length > 0) {
+          scheduleCompaction();
+        }
+      }
+    }
+
+    /**
+     * Hands the entries to a new eviction policy, least recently used first,
+     * and queues the ones that expire.
+     */
+    private void initPolicy() {
+      policy = EvictionPolicy.create(eviction, maxSize, sketch);
+      expiries.clear();
+      if (compactIndex != null) {
+        // Compact indexes are LRU only, so they only need their expiries queued.
+        for (int slot = compactIndex.eldest(); slot != CompactIndex.NONE;
+            slot = compactIndex.after(slot)) {
+          if (compactIndex.expiresAt(slot) != 0) {
+            expiries.add(new Expiry(slot, compactIndex.expiresAt(slot)));
+          }
+        }
+        scheduleSweep();
+        return;
+      }
+      for (Entry entry : lruEntries.values()) {
+        if (policy != null) {
+          policy.add(entry.key, entry.totalLength());
+        }
+        if (entry.expiresAt != 0) {
+          expiries.add(newExpiry(entry));
+        }
+      }
+      scheduleSweep();
+    }
+
+    /** Schedules a sweep for when the next queued entry expires. */
+    private void scheduleSweep() {
+      Expiry next = expiries.peek();
+      if (next == null || next.expiresAt >= sweepAt) {
+        return;
+      }
+      if (sweepFuture != null) {
+        sweepFuture.cancel(false);
+      }
+      sweepAt = next.expiresAt;
+      long delay = Math.max(0, sweepAt - System.currentTimeMillis());
+      sweepFuture = executorService.schedule(sweepCallable, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes up to {@link #SWEEP_BATCH_SIZE} expired entries, then lets other
+     * maintenance run before the next batch.
+     */
+    private synchronized void sweep() throws IOException {
+      sweepFuture = null;
+      sweepAt = Long.MAX_VALUE;
+      if (journalWriter == null) {
+        return; // Closed.
+      }
+      long now = System.currentTimeMillis();
+      for (int removed = 0; removed < SWEEP_BATCH_SIZE; ) {
+        Expiry next = expiries.peek();
+        if (next == null || next.expiresAt > now) {
+          break;
+        }
+        expiries.poll();
+        Entry entry = expiring(next);
+        if (entry == null || entry.expiresAt != next.expiresAt || entry.currentEditor != null) {
+          continue; // Stale, or its commit will queue it again.
+        }
+        remove(entry.key);
+        removed++;
+      }
+      Expiry next = expiries.peek();
+      if (next != null && next.expiresAt <= now) {
+        sweepAt = now;
+        sweepFuture = executorService.schedule(sweepCallable, 0, TimeUnit.MILLISECONDS);
+      } else {
+        scheduleSweep();
+      }
+    }
+
+    private void queueExpiry(Entry entry) {
+      if (expiries.size() > 2 * entryCount() + SWEEP_BATCH_SIZE) {
+        // Mostly stale elements from rewritten entries; start over.
+        expiries.clear();
+        for (Entry other : entries()) {
+          if (other.expiresAt != 0 && !other.key.equals(entry.key)) {
+            expiries.add(newExpiry(other));
+          }
+        }
+      }
+      expiries.add(newExpiry(entry));
+      scheduleSweep();
+    }
+
+    private Expiry newExpiry(Entry entry) {
+      return compactIndex != null
+          ? new Expiry(compactIndex.find(entry.key), entry.expiresAt)
+          : new Expiry(entry);
+    }
+
+    /** Returns the entry an expiry was queued for, or null if it's gone. */
+    private Entry expiring(Expiry expiry) {
+      if (compactIndex == null) {
+        return expiry.entry;
+      }
+      // A removed entry's slot has no expiry time. If the slot was reused,
+      // the new entry only matches if it expires at the same time.
+      return compactIndex.expiresAt(expiry.slot) == expiry.expiresAt
+          ? entryAt(expiry.slot)
+          : null;
+    }
+
+    private void scheduleCompaction() {
+      if (!compactionPending) {
+        compactionPending = true;
+        executorService.submit(compactionCallable);
+      }
+    }
+
+    private void scheduleSync() {
+      if (durability == Durability.PERIODIC) {
+        syncFuture = executorService.scheduleWithFixedDelay(syncRunnable,
+            syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /**
+     * Reads the journal in whichever format it was written. Returns true if
+     * the journal must be rebuilt before appending to it, because it is in the
+     * old text format or ends with a partial record.
+     */
+    private boolean readJournal() throws IOException {
+      byte[] header = new byte[BinaryJournal.MAGIC.length];
+      int headerLength;
+      InputStream in = new FileInputStream(journalFile);
+      try {
+        headerLength = in.read(header);
+      } finally {
+        Util.closeQuietly(in);
+      }
+      if (!BinaryJournal.hasMagic(header, headerLength)) {
+        TextJournalReader reader =
+            new TextJournalReader(new FileInputStream(journalFile), valueCount);
+        try {
+          reader.readHeader(appVersion);
+          readRecords(reader, 0);
+        } finally {
+          Util.closeQuietly(reader);
+        }
+        return true; // Rewritten in the binary format.
+      }
+
+      BinaryJournal.Reader reader = new BinaryJournal.Reader(new FileInputStream(journalFile));
+      try {
+        journalId = reader.readHeader(appVersion, valueCount);
+        int recordCount = 0;
+        Checkpoint checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+          // Skip the records the checkpoint already accounts for.
+          Util.closeQuietly(reader);
+          FileInputStream tail = new FileInputStream(journalFile);
+          reader = new BinaryJournal.Reader(tail);
+          tail.getChannel().position(checkpoint.journalPosition);
+          loadCheckpoint(checkpoint);
+          recordCount = checkpoint.redundantOpCount + checkpoint.entryCount;
+        }
+        readRecords(reader, recordCount);
+        return reader.isTruncated();
+      } finally {
+        Util.closeQuietly(reader);
+      }
+    }
+
+    /**
+     * Replays the records of {@code reader}. {@code recordCount} records were
+     * accounted for already.
+     */
+    private void readRecords(JournalReader reader, int recordCount) throws IOException {
+      while (reader.next()) {
+        if (compactIndex != null) {
+          readIndexRecord(reader);
+        } else {
+          readJournalRecord(reader);
+        }
+        recordCount++;
+      }
+      redundantOpCount = recordCount - entryCount();
+    }
+
+    /**
+     * Returns this segment's checkpoint if it reflects a prefix of the current
+     * journal, or null if the whole journal must be replayed.
+     */
+    private Checkpoint readCheckpoint() {
+      if (!checkpointFile.exists()) {
+        return null;
+      }
+      try {
+        Checkpoint checkpoint = Checkpoint.read(checkpointFile, appVersion, valueCount);
+        if (checkpoint.journalId != journalId
+            || checkpoint.journalPosition > journalFile.length()) {
+          return null; // Written for an older journal, or ahead of a journal that lost its tail.
+        }
+        return checkpoint;
+      } catch (IOException e) {
+        return null; // A damaged checkpoint only costs a full replay.
+      }
+    }
+
+    private void loadCheckpoint(Checkpoint checkpoint) throws IOException {
+      nextSequenceNumber = checkpoint.nextSequenceNumber;
+      for (int i = 0; i < checkpoint.entryCount; i++) {
+        checkJournalKey(checkpoint.keys[i]);
+        int flags = checkpoint.flags[i];
+        if (compactIndex != null) {
+          loadSlot(checkpoint, i);
+          continue;
+        }
+        Entry entry = new Entry(this, checkpoint.keys[i]);
+        entry.readable = (flags & Checkpoint.FLAG_READABLE) != 0;
+        if ((flags & Checkpoint.FLAG_DIRTY) != 0) {
+          entry.currentEditor = new Editor(entry);
+        }
+        System.arraycopy(checkpoint.lengths, i * valueCount, entry.lengths, 0, valueCount);
+        entry.locations = checkpoint.locations[i];
+        entry.expiresAt = checkpoint.expiresAt[i];
+        entry.checksums = checkpoint.checksums[i];
+        entry.sequenceNumber = checkpoint.sequenceNumbers[i];
+        addEntry(entry);
+      }
+    }
+
+    /** Copies the checkpoint's entry {@code i} into a new slot of the compact index. */
+    private void loadSlot(Checkpoint checkpoint, int i) {
+      int slot = compactIndex.insert(checkpoint.keys[i]);
+      compactIndex.setReadable(slot, (checkpoint.flags[i] & Checkpoint.FLAG_READABLE) != 0);
+      compactIndex.setDirty(slot, (checkpoint.flags[i] & Checkpoint.FLAG_DIRTY) != 0);
+      long[] locations = checkpoint.locations[i];
+      long[] checksums = checkpoint.checksums[i];
+      for (int v = 0; v < valueCount; v++) {
+        compactIndex.setLength(slot, v, checkpoint.lengths[i * valueCount + v]);
+        if (locations != null) {
+          compactIndex.setLocation(slot, v, locations[v]);
+        }
+        if (checksums != null) {
+          compactIndex.setChecksum(slot, v, checksums[v]);
+        }
+      }
+      compactIndex.setExpiresAt(slot, checkpoint.expiresAt[i]);
+      compactIndex.setSequenceNumber(slot, checkpoint.sequenceNumbers[i]);
+    }
+
+    /**
+     * Writes a checkpoint of this segment. The entries are copied under the
+     * lock; the file is written without it.
+     */
+    private void writeCheckpoint() throws IOException {
+      Checkpoint checkpoint;
+      JournalWriter writer;
+      PackStore packs;
+      synchronized (this) {
+        checkpointPending = false;
+        if (journalWriter == null) {
+          return; // Closed.
+        }
+        writer = journalWriter;
+        packs = packStore;
+        checkpoint = newCheckpoint(writer.position());
+      }
+      try {
+        if (packs != null && durability != Durability.NONE) {
+          packs.sync();
+        }
+        // A checkpoint is only usable once the journal reaches its position.
+        writer.await(checkpoint.journalPosition, durability != Durability.NONE);
+      } catch (IOException e) {
+        return; // The journal was replaced while we waited.
+      }
+      // The checkpoint has no REMOVE records to delete the files by on open.
+      deleteFiles();
+      saveCheckpoint(checkpoint);
+    }
+
+    /** Copies every entry into a checkpoint at {@code journalPosition}. */
+    private Checkpoint newCheckpoint(long journalPosition) {
+      Checkpoint checkpoint = snapshot(journalPosition);
+      recordsSinceCheckpoint = 0;
+      return checkpoint;
+    }
+
+    /** Copies every entry, as of {@code journalPosition}, in access order. */
+    private Checkpoint snapshot(long journalPosition) {
+      Checkpoint checkpoint = new Checkpoint(journalId, journalPosition, nextSequenceNumber,
+          redundantOpCount, valueCount, entryCount());
+      if (compactIndex != null) {
+        addSlots(checkpoint);
+      } else {
+        for (Entry entry : lruEntries.values()) {
+          addEntry(checkpoint, entry);
+        }
+      }
+      return checkpoint;
+    }
+
+    private void addEntry(Checkpoint checkpoint, Entry entry) {
+      int flags = 0;
+      if (entry.readable) {
+        flags |= Checkpoint.FLAG_READABLE;
+      }
+      if (entry.currentEditor != null) {
+        flags |= Checkpoint.FLAG_DIRTY;
+      }
+      checkpoint.add(entry.key, flags, entry.lengths, entry.locations, entry.expiresAt,
+          entry.checksums, entry.sequenceNumber);
+    }
+
+    /** Copies the compact index into {@code checkpoint} without making entry copies. */
+    private void addSlots(Checkpoint checkpoint) {
+      long[] lengths = new long[valueCount];
+      long[] locations = new long[valueCount];
+      long[] checksums = new long[valueCount];
+      for (int slot = compactIndex.eldest(); slot != CompactIndex.NONE;
+          slot = compactIndex.after(slot)) {
+        String key = compactIndex.key(slot);
+        Entry entry = pinned.get(key);
+        if (entry != null) {
+          addEntry(checkpoint, entry);
+          continue;
+        }
+        boolean packed = false;
+        boolean checked = false;
+        for (int i = 0; i < valueCount; i++) {
+          lengths[i] = compactIndex.length(slot, i);
+          locations[i] = compactIndex.location(slot, i);
+          packed |= locations[i] != IN_FILE;
+          checksums[i] = compactIndex.checksum(slot, i);
+          checked |= checksums[i] != NO_CHECKSUM;
+        }
+        checkpoint.add(key, compactIndex.isReadable(slot) ? Checkpoint.FLAG_READABLE : 0,
+            lengths, packed ? locations : null, compactIndex.expiresAt(slot),
+            checked ? checksums : null, compactIndex.sequenceNumber(slot));
+      }
+    }
+
+    private void saveCheckpoint(Checkpoint checkpoint) throws IOException {
+      synchronized (checkpointFile) {
+        checkpoint.writeTo(checkpointFileTmp, appVersion, durability != Durability.NONE);
+        renameTo(checkpointFileTmp, checkpointFile, false);
+      }
+    }
+
+    private void readJournalRecord(JournalReader reader) throws IOException {
+      String key = reader.key();
+      checkJournalKey(key);
+      byte op = reader.op();
+      if (op == BinaryJournal.REMOVE) {
+        removeEntry(key);
+        removedKeys.add(key);
+        return;
+      }
+
+      Entry entry = getEntry(key);
+      if (entry == null) {
+        entry = new Entry(this, key);
+        addEntry(entry);
+      }
+
+      if (op == BinaryJournal.CLEAN) {
+        entry.readable = true;
+        entry.currentEditor = null;
+        entry.sequenceNumber = nextSequenceNumber++;
+        for (int i = 0; i < valueCount; i++) {
+          entry.lengths[i] = reader.nextField();
+        }
+        entry.locations = null;
+        entry.expiresAt = 0;
+        entry.checksums = null;
+        if (reader.hasMoreFields()) {
+          for (int i = 0; i < valueCount; i++) {
+            entry.setLocation(i, reader.nextField() - 1);
+          }
+          if (reader.hasMoreFields()) {
+            entry.expiresAt = reader.nextField();
+          }
+          if (reader.hasMoreFields()) {
+            for (int i = 0; i < valueCount; i++) {
+              entry.setChecksum(i, reader.nextField() - 1);
+            }
+          }
+        }
+      } else if (op == BinaryJournal.DIRTY) {
+        entry.currentEditor = new Editor(entry);
+      } else if (op == BinaryJournal.READ) {
+        // This work was already done by calling getEntry().
+      } else {
+        throw new IOException("unexpected journal record: " + op + " " + key);
+      }
+      saveEntry(entry);
+    }
+
+    private void checkJournalKey(String key) throws IOException {
+      if (compactIndex != null && !CompactIndex.isDigest(key)) {
+        throw new IOException("key can't be indexed compactly: " + key);
+      }
+    }
+
+    /**
+     * Applies a journal record straight to the compact index, without making
+     * a key string or an entry. Entries left dirty are only flagged; {@link
+     * #processJournal} deletes them.
+     */
+    private void readIndexRecord(JournalReader reader) throws IOException {
+      byte[] key = reader.keyBuffer();
+      int keyOffset = reader.keyOffset();
+      if (!CompactIndex.isDigest(key, keyOffset, reader.keyLength())) {
+        throw new IOException("key can't be indexed compactly: " + reader.key());
+      }
+      byte op = reader.op();
+      int slot = compactIndex.find(key, keyOffset);
+      if (op == BinaryJournal.REMOVE) {
+        if (slot != CompactIndex.NONE) {
+          compactIndex.remove(slot);
+        }
+        removedKeys.add(reader.key());
+        return;
+      }
+      if (slot == CompactIndex.NONE) {
+        slot = compactIndex.insert(key, keyOffset);
+      } else {
+        compactIndex.moveToTail(slot);
+      }
+
+      if (op == BinaryJournal.CLEAN) {
+        compactIndex.setReadable(slot, true);
+        compactIndex.setDirty(slot, false);
+        compactIndex.setSequenceNumber(slot, nextSequenceNumber++);
+        for (int i = 0; i < valueCount; i++) {
+          compactIndex.setLength(slot, i, reader.nextField());
+        }
+        boolean hasLocations = reader.hasMoreFields();
+        for (int i = 0; i < valueCount; i++) {
+          compactIndex.setLocation(slot, i, hasLocations ? reader.nextField() - 1 : IN_FILE);
+        }
+        compactIndex.setExpiresAt(slot,
+            hasLocations && reader.hasMoreFields() ? reader.nextField() : 0);
+        boolean hasChecksums = hasLocations && reader.hasMoreFields();
+        for (int i = 0; i < valueCount; i++) {
+          compactIndex.setChecksum(slot, i,
+              hasChecksums ? reader.nextField() - 1 : NO_CHECKSUM);
+        }
+      } else if (op == BinaryJournal.DIRTY) {
+        compactIndex.setDirty(slot, true);
+      } else if (op != BinaryJournal.READ) {
+        throw new IOException("unexpected journal record: " + op + " " + reader.key());
+      }
+    }
+
+    /**
+     * Computes the initial size and collects garbage as a part of opening the
+     * cache. Dirty entries are assumed to be inconsistent and will be deleted.
+     * So are the files of removed entries, which may not have been deleted
+     * before the cache was closed.
+     */
+    private void processJournal() throws IOException {
+      deleteIfExists(journalFileTmp);
+      for (String key : removedKeys) {
+        if (compactIndex != null ? compactIndex.find(key) == CompactIndex.NONE
+            : !lruEntries.containsKey(key)) {
+          Entry entry = new Entry(this, key);
+          for (int t = 0; t < valueCount; t++) {
+            deleteLater(entry.getCleanFile(t));
+          }
+        }
+      }
+      if (compactIndex != null) {
+        for (int slot = compactIndex.eldest(); slot != CompactIndex.NONE; ) {
+          int next = compactIndex.after(slot);
+          if (compactIndex.isDirty(slot)) {
+            deleteValues(new Entry(this, compactIndex.key(slot)));
+            compactIndex.remove(slot);
+          } else {
+            for (int t = 0; t < valueCount; t++) {
+              recoverValue(compactIndex.length(slot, t), compactIndex.location(slot, t));
+            }
+          }
+          slot = next;
+        }
+        return;
+      }
+      for (Entry entry : editedEntries()) {
+        entry.currentEditor = null;
+        deleteValues(entry);
+        lruEntries.remove(entry.key);
+      }
+      for (Entry entry : lruEntries.values()) {
+        for (int t = 0; t < valueCount; t++) {
+          recoverValue(entry.lengths[t], entry.locationOf(t));
+        }
+      }
+    }
+
+    /** Deletes the files of an entry that was being edited when the cache was closed. */
+    private void deleteValues(Entry entry) throws IOException {
+      for (int t = 0; t < valueCount; t++) {
+        deleteIfExists(entry.getCleanFile(t));
+        deleteIfExists(entry.getDirtyFile(t));
+      }
+    }
+
+    private void recoverValue(long length, long location) {
+      size += length;
+      if (location != IN_FILE) {
+        if (packStore == null) {
+          packStore = new PackStore(directory);
+        }
+        packStore.recoverLive(location, length);
+      }
+    }
+
+    /**
+     * Creates a new journal that omits redundant information. This replaces the
+     * current journal if it exists.
+     */
+    private synchronized void rebuildJournal() throws IOException {
+      if (journalWriter != null) {
+        // Commits waiting on the old journal are released by this sync.
+        journalWriter.close(durability == Durability.EVERY_COMMIT);
+      }
+
+      if (packStore != null && durability != Durability.NONE) {
+        packStore.sync(); // The new journal must not point at unsynced values.
+      }
+      long newJournalId = journalIds.nextLong() & Long.MAX_VALUE;
+      FileOutputStream fileOut = new FileOutputStream(journalFileTmp);
+      OutputStream out = new BufferedOutputStream(fileOut);
+      try {
+        BinaryJournal.writeHeader(out, appVersion, valueCount, newJournalId);
+        for (Entry entry : entries()) {
+          if (entry.currentEditor != null) {
+            record.begin(BinaryJournal.DIRTY, entry.key);
+          } else {
+            entry.writeCleanRecord(record);
+          }
+          record.finish();
+          out.write(record.buffer(), record.offset(), record.length());
+        }
+        out.flush();
+        if (durability != Durability.NONE) {
+          // Don't let the rename reach the disk before the journal's contents.
+          fileOut.getFD().sync();
+        }
+      } finally {
+        out.close();
+      }
+
+      if (journalFile.exists()) {
+        renameTo(journalFile, journalFileBackup, true);
+      }
+      renameTo(journalFileTmp, journalFile, false);
+      journalFileBackup.delete();
+      // The old checkpoint describes the old journal; the new one is compact anyway.
+      checkpointFile.delete();
+
+      journalId = newJournalId;
+      journalWriter = new JournalWriter(journalFile);
+      // The new journal lists the entries in access order already.
+      for (Entry entry : pendingReads) {
+        entry.readPending = false;
+        if (isCurrent(entry)) {
+          saveEntry(entry);
+        }
+      }
+      pendingReads.clear();
+      recordsSinceCheckpoint = 0;
+    }
+
+    /**
+     * Replaces the journal with one that omits redundant records without
+     * holding the lock while it is written, so that readers aren't held up
+     * for longer with more entries. The entries are copied under the lock as
+     * of a journal position and written out without it. The records appended
+     * after that position are then copied from the old journal, and the lock
+     * is taken again only to copy the last of them and swap the files.
+     */
+    private void compactJournal() throws IOException {
+      JournalWriter writer;
+      PackStore packs;
+      Checkpoint snapshot;
+      synchronized (this) {
+        if (journalWriter == null || journalCompacting) {
+          return; // Closed, or already being compacted.
+        }
+        journalCompacting = true;
+        writer = journalWriter;
+        packs = packStore;
+        snapshot = snapshot(writer.position());
+      }
+
+      long newJournalId = journalIds.nextLong() & Long.MAX_VALUE;
+      FileOutputStream fileOut = null;
+      boolean swapped = false;
+      try {
+        fileOut = new FileOutputStream(journalFileTmp);
+        OutputStream out = new BufferedOutputStream(fileOut);
+        BinaryJournal.writeHeader(out, appVersion, valueCount, newJournalId);
+        BinaryJournal.RecordBuilder builder = new BinaryJournal.RecordBuilder();
+        for (int i = 0; i < snapshot.entryCount; i++) {
+          snapshot.writeRecord(i, builder);
+          out.write(builder.buffer(), builder.offset(), builder.length());
+        }
+        out.flush();
+        if (packs != null && durability != Durability.NONE) {
+          packs.sync(); // The new journal must not point at unsynced values.
+        }
+        // The new journal drops the REMOVE records that would delete these on open.
+        deleteFiles();
+        long copied = writer.position();
+        writer.await(copied, false);
+        copyJournal(snapshot.journalPosition, copied, fileOut);
+
+        synchronized (this) {
+          if (journalWriter != writer) {
+            return; // Closed meanwhile.
+          }
+          // Commits waiting on the old journal are released by this sync.
+          writer.close(durability == Durability.EVERY_COMMIT);
+          copyJournal(copied, writer.position(), fileOut);
+          if (durability != Durability.NONE) {
+            // Don't let the rename reach the disk before the journal's contents.
+            fileOut.getFD().sync();
+          }
+          fileOut.close();
+
+          renameTo(journalFile, journalFileBackup, true);
+          renameTo(journalFileTmp, journalFile, false);
+          journalFileBackup.delete();
+          // The old checkpoint describes the old journal.
+          checkpointFile.delete();
+
+          journalId = newJournalId;
+          journalWriter = new JournalWriter(journalFile);
+          redundantOpCount = Math.max(redundantOpCount - snapshot.redundantOpCount, 0);
+          recordsSinceCheckpoint = 0;
+          stats.increment(CacheStats.Counter.JOURNAL_REBUILD);
+          swapped = true;
+        }
+      } finally {
+        synchronized (this) {
+          if (!swapped) {
+            Util.closeQuietly(fileOut);
+            if (journalWriter == writer) {
+              journalFileTmp.delete(); // Otherwise it was closed or cleared meanwhile.
+            }
+          }
+          journalCompacting = false;
+        }
+      }
+    }
+
+    /** Appends the bytes of the journal file from {@code start} to {@code end} to {@code out}. */
+    private void copyJournal(long start, long end, FileOutputStream out) throws IOException {
+      FileInputStream in = new FileInputStream(journalFile);
+      try {
+        FileChannel source = in.getChannel();
+        FileChannel target = out.getChannel();
+        for (long position = start; position < end; ) {
+          long count = source.transferTo(position, end - position, target);
+          if (count <= 0) {
+            throw new EOFException("journal ends before " + end);
+          }
+          position += count;
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    /**
+     * Appends the record in {@link #record} to the journal, scheduling a
+     * checkpoint if enough records have been appended since the last one.
+     */
+    private long appendRecord() throws IOException {
+      record.finish();
+      long position;
+      if (batching) {
+        if (batchLength + record.length() > batch.length) {
+          byte[] grown = new byte[Math.max(batchLength + record.length(), batch.length * 2)];
+          System.arraycopy(batch, 0, grown, 0, batchLength);
+          batch = grown;
+        }
+        System.arraycopy(record.buffer(), record.offset(), batch, batchLength, record.length());
+        batchLength += record.length();
+        position = -1; // Known once the batch is appended.
+      } else {
+        position = journalWriter.append(record.buffer(), record.offset(), record.length());
+      }
+      if (checkpointInterval > 0 && ++recordsSinceCheckpoint >= checkpointInterval
+          && !checkpointPending) {
+        checkpointPending = true;
+        executorService.submit(checkpointCallable);
+      }
+      return position;
+    }
+
+    /**
+     * Makes {@link #appendRecord} collect records until the next call to
+     * {@link #appendBatch}. Both must be called under the same hold of the
+     * lock.
+     */
+    private void beginBatch() {
+      batching = true;
+    }
+
+    /** Appends the collected records and returns the journal position of their end. */
+    private long appendBatch() throws IOException {
+      batching = false;
+      if (batchLength == 0) {
+        return journalWriter.position();
+      }
+      int length = batchLength;
+      batchLength = 0;
+      return journalWriter.append(batch, 0, length);
+    }
+
+    private synchronized Snapshot get(String key) throws IOException {
+      checkNotClosed();
+      Snapshot snapshot = getLocked(key);
+      drainReadsIfFull();
+      return snapshot;
+    }
+
+    private synchronized boolean contains(String key) {
+      checkNotClosed();
+      Entry entry;
+      if (compactIndex == null) {
+        entry = lruEntries.get(key);
+      } else {
+        int slot = compactIndex.find(key);
+        entry = slot != CompactIndex.NONE ? entryAt(slot, key) : null;
+      }
+      return entry != null && entry.readable && !entry.isExpired(System.currentTimeMillis());
+    }
+
+    private synchronized void getAll(List<String> keys, Map<String, Snapshot> result)
+        throws IOException {
+      checkNotClosed();
+      beginBatch();
+      try {
+        for (String key : keys) {
+          Snapshot snapshot = getLocked(key);
+          if (snapshot != null) {
+            result.put(key, snapshot);
+          }
+        }
+        drainReadsIfFull();
+      } finally {
+        appendBatch();
+      }
+    }
+
+    private Snapshot getLocked(String key) throws IOException {
+      if (sketch != null) {
+        sketch.increment(key);
+      }
+      Entry entry = getEntry(key);
+      if (entry == null || !entry.readable || entry.isExpired(System.currentTimeMillis())) {
+        stats.increment(CacheStats.Counter.DISK_MISS);
+        return null;
+      }
+
+      Snapshot snapshot = openSnapshot(entry, entry.checksums != null && shouldVerify());
+      if (snapshot == null) {
+        stats.increment(CacheStats.Counter.DISK_MISS);
+        return null;
+      }
+
+      if (policy != null) {
+        policy.access(key);
+      }
+      entry.lastRead = ++readClock;
+      if (!entry.readPending) {
+        entry.readPending = true;
+        pendingReads.add(entry);
+        saveEntry(entry);
+      }
+
+      stats.increment(CacheStats.Counter.DISK_HIT);
+      return snapshot;
+    }
+
+    /**
+     * Opens the values of {@code entry}, or returns null if a file has gone
+     * missing. Values with checksums are verified if {@code verify} is true.
+     */
+    private Snapshot openSnapshot(Entry entry, boolean verify) throws IOException {
+      // Open all streams eagerly to guarantee that we see a single published
+      // snapshot. If we opened streams lazily then the streams could come
+      // from different edits.
+      InputStream[] ins = new InputStream[valueCount];
+      long[] offsets = new long[valueCount];
+      try {
+        for (int i = 0; i < valueCount; i++) {
+          ins[i] = entry.openValue(i);
+          long location = entry.locationOf(i);
+          offsets[i] = location != IN_FILE ? PackStore.offsetOf(location) : 0;
+          if (verify && entry.checksums[i] != NO_CHECKSUM) {
+            ins[i] = new VerifyingInputStream(ins[i], entry, i);
+          }
+        }
+      } catch (FileNotFoundException e) {
+        // A file must have been deleted manually!
+        for (int i = 0; i < valueCount; i++) {
+          if (ins[i] != null) {
+            Util.closeQuietly(ins[i]);
+          } else {
+            break;
+          }
+        }
+        return null;
+      }
+      return new Snapshot(entry.key, entry.sequenceNumber, ins, offsets, entry.lengths.clone());
+    }
+
+    /** Returns true if the read being made should verify its values. */
+    private boolean shouldVerify() {
+      if (verification == Verification.ALWAYS) {
+        return true;
+      }
+      if (verification == Verification.SAMPLED && ++readsSinceVerify >= VERIFY_SAMPLE_INTERVAL) {
+        readsSinceVerify = 0;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Removes {@code key}'s entry after a value of it failed verification,
+     * unless the entry has been replaced or is being edited since it was read.
+     */
+    private synchronized void removeCorrupt(String key, long sequenceNumber) throws IOException {
+      if (journalWriter == null) {
+        return; // Closed or cleared meanwhile.
+      }
+      Entry entry = getEntry(key);
+      if (entry != null && entry.sequenceNumber == sequenceNumber) {
+        stats.increment(CacheStats.Counter.CORRUPTION);
+        remove(key);
+      }
+    }
+
+    private void drainReadsIfFull() throws IOException {
+      if (pendingReads.size() >= READ_BATCH_SIZE) {
+        drainReads();
+        if (journalRebuildRequired()) {
+          executorService.submit(cleanupCallable);
+        }
+      }
+    }
+
+    /**
+     * Writes a READ record for every entry read since the last call, in the
+     * order they were last read.
+     */
+    private void drainReads() throws IOException {
+      if (pendingReads.isEmpty()) {
+        return;
+      }
+      Collections.sort(pendingReads, readOrder);
+      for (Entry entry : pendingReads) {
+        entry.readPending = false;
+        if (isCurrent(entry)) {
+          saveEntry(entry);
+          redundantOpCount++;
+          record.begin(BinaryJournal.READ, entry.key);
+          appendRecord();
+        }
+      }
+      pendingReads.clear();
+    }
+
+    private synchronized Editor edit(String key, long expectedSequenceNumber)
+        throws IOException {
+      checkNotClosed();
+      return editLocked(key, expectedSequenceNumber);
+    }
+
+    private synchronized void editAll(List<String> keys, Map<String, Editor> result)
+        throws IOException {
+      checkNotClosed();
+      ArrayList<Editor> editors = new ArrayList<Editor>(keys.size());
+      long position;
+      try {
+        beginBatch();
+        try {
+          for (String key : keys) {
+            Editor editor = editLocked(key, ANY_SEQUENCE_NUMBER);
+            if (editor != null) {
+              editors.add(editor);
+            }
+          }
+        } finally {
+          position = appendBatch();
+        }
+      } catch (IOException e) {
+        abortAll(editors);
+        throw e;
+      } catch (RuntimeException e) {
+        abortAll(editors);
+        throw e;
+      }
+      for (Editor editor : editors) {
+        editor.dirtyPosition = position;
+        result.put(editor.entry.key, editor);
+      }
+    }
+
+    /** Ends the edits a failed {@link #editAll} had already begun. */
+    private void abortAll(List<Editor> editors) {
+      for (Editor editor : editors) {
+        editor.abortUnlessCommitted();
+      }
+    }
+
+    private Editor editLocked(String key, long expectedSequenceNumber) throws IOException {
+      Entry entry = getEntry(key);
+      if (entry != null && entry.currentEditor == null
+          && entry.isExpired(System.currentTimeMillis())) {
+        remove(key); // Start over rather than edit expired values.
+        entry = null;
+      }
+      if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
+          || entry.sequenceNumber != expectedSequenceNumber)) {
+        return null; // Snapshot is stale.
+      }
+      if (entry == null) {
+        if (admissionFrequency > 0 && sketch.frequency(key) < admissionFrequency) {
+          return null; // Not requested often enough to be worth storing.
+        }
+        entry = new Entry(this, key);
+        addEntry(entry);
+      } else if (entry.currentEditor != null) {
+        return null; // Another edit is in progress.
+      }
+
+      Editor editor = new Editor(entry);
+      entry.currentEditor = editor;
+      saveEntry(entry);
+
+      // The editor flushes this record before creating files to prevent file
+      // leaks. Waiting for that here would hold the lock during the write.
+      record.begin(BinaryJournal.DIRTY, key);
+      editor.dirtyJournal = journalWriter;
+      editor.dirtyPosition = appendRecord();
+      return editor;
+    }
+
+    private synchronized void setMaxSize(long maxSize) {
+      this.maxSize = maxSize;
+      if (policy != null) {
+        policy.setMaxSize(maxSize);
+      }
+      if (journalWriter != null) {
+        executorService.submit(cleanupCallable);
+      }
+    }
+
+    private synchronized long size() {
+      return size;
+    }
+
+    /**
+     * Publishes or discards the values written by {@code editor}, then waits
+     * outside of the lock for the journal record if durability requires it.
+     */
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+      JournalWriter writer;
+      long position;
+      synchronized (this) {
+        position = completeEditLocked(editor, success);
+        writer = journalWriter;
+      }
+      if (position != -1) {
+        awaitCommit(writer, position);
+      }
+    }
+
+    /** Returns the journal position of the edit's record, or -1 if none was written. */
+    private long completeEditLocked(Editor editor, boolean success) throws IOException {
+      Entry entry = editor.entry;
+      if (entry.currentEditor != editor) {
+        editor.releasePacked();
+        throw new IllegalStateException();
+      }
+
+      // If this edit is creating the entry for the first time, every index must have a value.
+      if (success && !entry.readable) {
+        for (int i = 0; i < valueCount; i++) {
+          if (!editor.written[i]) {
+            editor.abort();
+            throw new IllegalStateException(
+                "Newly created entry didn't create value for index " + i);
+          }
+          if (editor.packedLocation(i) == IN_FILE && !entry.getDirtyFile(i).exists()) {
+            editor.abort();
+            return -1;
+          }
+        }
+      }
+
+      for (int i = 0; i < valueCount; i++) {
+        File dirty = entry.getDirtyFile(i);
+        long packed = editor.packedLocation(i);
+        if (success && packed != IN_FILE) {
+          deleteLater(dirty); // Left behind if the value was rewritten after spilling.
+          releasePacked(entry, i);
+          deleteLater(entry.getCleanFile(i));
+          long oldLength = entry.lengths[i];
+          long newLength = editor.packing[i].count;
+          entry.lengths[i] = newLength;
+          entry.setLocation(i, packed);
+          entry.setChecksum(i, editor.checksumOf(i));
+          size = size - oldLength + newLength;
+        } else if (success) {
+          if (dirty.exists()) {
+            releasePacked(entry, i);
+            File clean = entry.getCleanFile(i);
+            keepFile(clean);
+            dirty.renameTo(clean);
+            long oldLength = entry.lengths[i];
+            long newLength = clean.length();
+            entry.lengths[i] = newLength;
+            entry.setChecksum(i, editor.checksumOf(i));
+            size = size - oldLength + newLength;
+          }
+        } else {
+          deleteIfExists(dirty);
+        }
+      }
+      if (!success) {
+        editor.releasePacked();
+      }
+      editor.packedLocations = null;
+      deleteDeadPacks(); // Appending may have rolled over to a new pack, too.
+
+      redundantOpCount++;
+      entry.currentEditor = null;
+      if (policy != null && success) {
+        if (entry.readable) {
+          policy.resize(entry.key, entry.totalLength());
+          policy.access(entry.key);
+        } else {
+          policy.add(entry.key, entry.totalLength());
+        }
+      }
+      if (entry.readable | success) {
+        entry.readable = true;
+        if (success) {
+          long expiresAt = editor.expiresAt != ANY_EXPIRY
+              ? editor.expiresAt
+              : (timeToLiveMillis > 0 ? System.currentTimeMillis() + timeToLiveMillis : 0);
+          if (expiresAt != entry.expiresAt) {
+            entry.expiresAt = expiresAt;
+            if (expiresAt != 0) {
+              queueExpiry(entry);
+            }
+          }
+        }
+        entry.writeCleanRecord(record);
+        if (success) {
+          entry.sequenceNumber = nextSequenceNumber++;
+          stats.increment(CacheStats.Counter.PUT);
+        }
+        saveEntry(entry);
+      } else {
+        removeEntry(entry.key);
+        record.begin(BinaryJournal.REMOVE, entry.key);
+      }
+      long position = appendRecord();
+
+      if (size > maxSize || journalRebuildRequired()) {
+        executorService.submit(cleanupCallable);
+      }
+      return position;
+    }
+
+    /**
+     * We only rebuild the journal when it will halve the size of the journal
+     * and eliminate at least 2000 ops.
+     */
+    private boolean journalRebuildRequired() {
+      final int redundantOpCompactThreshold = 2000;
+      return redundantOpCount >= redundantOpCompactThreshold //
+          && redundantOpCount >= entryCount();
+    }
+
+    private synchronized int removeAll(List<String> keys) throws IOException {
+      checkNotClosed();
+      int removed = 0;
+      beginBatch();
+      try {
+        for (String key : keys) {
+          if (remove(key)) {
+            removed++;
+          }
+        }
+      } finally {
+        appendBatch();
+      }
+      return removed;
+    }
+
+    private synchronized boolean remove(String key) throws IOException {
+      checkNotClosed();
+      Entry entry = getEntry(key);
+      if (entry == null || entry.currentEditor != null) {
+        return false;
+      }
+
+      for (int i = 0; i < valueCount; i++) {
+        if (entry.locationOf(i) != IN_FILE) {
+          releasePacked(entry, i);
+        } else {
+          deleteLater(entry.getCleanFile(i));
+        }
+        size -= entry.lengths[i];
+        entry.lengths[i] = 0;
+      }
+
+      redundantOpCount++;
+      record.begin(BinaryJournal.REMOVE, key);
+      appendRecord();
+      removeEntry(key);
+      entry.expiresAt = 0; // Makes its expiry queue element stale.
+      if (policy != null) {
+        policy.remove(key);
+      }
+
+      if (journalRebuildRequired()) {
+        executorService.submit(cleanupCallable);
+      }
+
+      return true;
+    }
+
+    /** Queues {@code file} for {@link #deleteFiles}. */
+    private void deleteLater(File file) {
+      pendingDeletes.add(file);
+      if (!deletionScheduled) {
+        deletionScheduled = true;
+        executorService.submit(deleteCallable);
+      }
+    }
+
+    /**
+     * Takes {@code file} back from the deleter before a commit recreates it.
+     * Only if the deleter is deleting that very file does this wait, for the
+     * one delete; the lock isn't released, so the segment doesn't change
+     * meanwhile.
+     */
+    private void keepFile(File file) {
+      if (!pendingDeletes.remove(file) && !deleting.remove(file) && file.equals(unlinking)) {
+        deleteLock.lock();
+        deleteLock.unlock();
+      }
+    }
+
+    /**
+     * Deletes the files of removed values, taking {@link #DELETE_BATCH_SIZE}
+     * at a time. The lock is only held to take each batch and to claim each
+     * file, so that lookups aren't held up by the deletes. A file that {@link
+     * #keepFile} took back from the batch before it was claimed is skipped.
+     */
+    private void deleteFiles() {
+      synchronized (deleting) { // One deleter at a time.
+        while (true) {
+          List<File> batch = new ArrayList<File>();
+          synchronized (this) {
+            deleting.clear();
+            if (pendingDeletes.isEmpty()) {
+              deletionScheduled = false;
+              return;
+            }
+            for (Iterator<File> i = pendingDeletes.iterator();
+                i.hasNext() && batch.size() < DELETE_BATCH_SIZE; ) {
+              batch.add(i.next());
+              i.remove();
+            }
+            deleting.addAll(batch);
+          }
+          for (File file : batch) {
+            synchronized (this) {
+              if (!deleting.remove(file)) {
+                continue; // Kept.
+              }
+              unlinking = file;
+              // Taken before the lock is released so that keepFile() can wait for this file.
+              deleteLock.lock();
+            }
+            try {
+              file.delete(); // Already missing if the cache was closed meanwhile.
+            } finally {
+              deleteLock.unlock();
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Drops the pack bytes of {@code entry}'s value at {@code index}, if it
+     * is packed, scheduling a compaction if that leaves its pack sparse.
+     */
+    private void releasePacked(Entry entry, int index) {
+      long location = entry.locationOf(index);
+      if (location == IN_FILE) {
+        return;
+      }
+      entry.setLocation(index, IN_FILE);
+      if (packStore.release(location, entry.lengths[index])) {
+        scheduleCompaction();
+      }
+      deleteDeadPacks();
+    }
+
+    /** Queues the files of the packs that have no live values left for {@link #deleteFiles}. */
+    private void deleteDeadPacks() {
+      if (packStore != null) {
+        for (File file : packStore.takeDeadPacks()) {
+          deleteLater(file);
+        }
+      }
+    }
+
+    /**
+     * Moves the live values out of sparse packs so that the packs can be
+     * deleted. Values are read and appended without holding the lock; a
+     * value that was replaced or removed meanwhile keeps its new state and
+     * its copy is released again.
+     */
+    private void compactPacks() throws IOException {
+      PackStore packs;
+      int[] candidates;
+      synchronized (this) {
+        compactionPending = false;
+        if (journalWriter == null || packStore == null) {
+          return; // Closed.
+        }
+        packs = packStore;
+        candidates = packs.compactionCandidates();
+      }
+
+      for (int pack : candidates) {
+        List<Entry> entries = new ArrayList<Entry>();
+        List<Integer> indices = new ArrayList<Integer>();
+        long[] from;
+        long[] lengths;
+        synchronized (this) {
+          if (journalWriter == null || packStore != packs) {
+            return; // Closed or cleared.
+          }
+          for (Entry entry : entries()) {
+            // An entry that is being edited is left for a later compaction,
+            // so that its DIRTY record isn't followed by an unrelated CLEAN.
+            if (entry.locations == null || entry.currentEditor != null) {
+              continue;
+            }
+            for (int i = 0; i < valueCount; i++) {
+              if (entry.locations[i] != IN_FILE
+                  && PackStore.packOf(entry.locations[i]) == pack) {
+                entries.add(entry);
+                indices.add(i);
+              }
+            }
+          }
+          from = new long[entries.size()];
+          lengths = new long[entries.size()];
+          for (int m = 0; m < from.length; m++) {
+            from[m] = entries.get(m).locations[indices.get(m)];
+            lengths[m] = entries.get(m).lengths[indices.get(m)];
+          }
+        }
+
+        long[] to = new long[from.length];
+        int copied = 0;
+        try {
+          for (; copied < from.length; copied++) {
+            byte[] data = packs.read(from[copied], lengths[copied]);
+            to[copied] = packs.append(data, 0, data.length);
+          }
+          if (durability != Durability.NONE) {
+            packs.sync();
+          }
+        } catch (IOException e) {
+          // Give up on this pack, its values are still where they were.
+          synchronized (this) {
+            for (int m = 0; m < copied; m++) {
+              packs.release(to[m], lengths[m]);
+            }
+            if (packStore == packs) {
+              deleteDeadPacks();
+            }
+          }
+          continue;
+        }
+
+        synchronized (this) {
+          Entry journaled = null;
+          for (int m = 0; m < from.length; m++) {
+            Entry entry = journalWriter != null && packStore == packs
+                ? current(entries.get(m)) : null;
+            int index = indices.get(m);
+            if (entry == null || entry.locationOf(index) != from[m]
+                || entry.currentEditor != null) {
+              packs.release(to[m], lengths[m]);
+              continue;
+            }
+            entry.setLocation(index, to[m]);
+            saveEntry(entry);
+            packs.release(from[m], lengths[m]);
+            // Values of one entry are collected next to each other, but its
+            // CLEAN record has to list all of them.
+            if (journaled != null && !journaled.key.equals(entry.key)) {
+              appendMove(journaled);
+            }
+            journaled = entry;
+          }
+          if (journaled != null) {
+            appendMove(journaled);
+          }
+          if (packStore == packs) {
+            deleteDeadPacks();
+          }
+        }
+      }
+    }
+
+    private void appendMove(Entry entry) throws IOException {
+      redundantOpCount++;
+      entry.writeCleanRecord(record);
+      appendRecord();
+    }
+
+    private synchronized boolean isClosed() {
+      return journalWriter == null;
+    }
+
+    private void checkNotClosed() {
+      if (journalWriter == null) {
+        throw new IllegalStateException("cache is closed");
+      }
+    }
+
+    private void flush() throws IOException {
+      JournalWriter writer;
+      synchronized (this) {
+        checkNotClosed();
+        trimToSize();
+        drainReads();
+        writer = journalWriter;
+      }
+      writer.flush();
+      notifyEvicted();
+    }
+
+    private synchronized void close() throws IOException {
+      if (syncFuture != null) {
+        syncFuture.cancel(false);
+        syncFuture = null;
+      }
+      if (sweepFuture != null) {
+        sweepFuture.cancel(false);
+        sweepFuture = null;
+      }
+      if (journalWriter == null) {
+        return; // Already closed.
+      }
+      for (Entry entry : editedEntries()) {
+        entry.currentEditor.abort();
+      }
+      trimToSize();
+      drainReads();
+      for (File file : pendingDeletes) {
+        file.delete();
+      }
+      pendingDeletes.clear();
+      long position = journalWriter.position();
+      try {
+        if (packStore != null) {
+          packStore.close();
+        }
+      } finally {
+        journalWriter.close(durability != Durability.NONE);
+        journalWriter = null;
+      }
+      // Leave a checkpoint so that the next open has nothing to replay.
+      try {
+        saveCheckpoint(newCheckpoint(position));
+      } catch (IOException e) {
+        checkpointFileTmp.delete(); // The next open replays the journal instead.
+      }
+    }
+
+    /** Returns the entry for {@code key} and marks it most recently used, or returns null. */
+    private Entry getEntry(String key) {
+      if (compactIndex == null) {
+        return lruEntries.get(key);
+      }
+      int slot = compactIndex.find(key);
+      if (slot == CompactIndex.NONE) {
+        return null;
+      }
+      compactIndex.moveToTail(slot);
+      return entryAt(slot, key);
+    }
+
+    private Entry entryAt(int slot) {
+      return entryAt(slot, compactIndex.key(slot));
+    }
+
+    /** Returns the pinned entry in {@code slot}, or a copy of the slot. */
+    private Entry entryAt(int slot, String key) {
+      Entry entry = pinned.get(key);
+      if (entry != null) {
+        return entry;
+      }
+      entry = new Entry(this, key);
+      entry.readable = compactIndex.isReadable(slot);
+      for (int i = 0; i < valueCount; i++) {
+        entry.lengths[i] = compactIndex.length(slot, i);
+        entry.setLocation(i, compactIndex.location(slot, i));
+        entry.setChecksum(i, compactIndex.checksum(slot, i));
+      }
+      entry.sequenceNumber = compactIndex.sequenceNumber(slot);
+      entry.expiresAt = compactIndex.expiresAt(slot);
+      return entry;
+    }
+
+    /**
+     * Returns the current state of {@code entry}'s key without changing the
+     * access order, or null if it was removed. Called for entries that were
+     * looked up before the lock was released.
+     */
+    private Entry current(Entry entry) {
+      if (compactIndex == null) {
+        return entry; // The caller detects removal by the entry's state.
+      }
+      int slot = compactIndex.find(entry.key);
+      return slot != CompactIndex.NONE ? entryAt(slot, entry.key) : null;
+    }
+
+    /** Returns true if {@code entry} hasn't been removed or replaced. */
+    private boolean isCurrent(Entry entry) {
+      if (compactIndex == null) {
+        // containsKey() doesn't disturb the access order.
+        return lruEntries.containsKey(entry.key);
+      }
+      return pinned.get(entry.key) == entry;
     }
-    for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-      if (entry.currentEditor != null) {
-        entry.currentEditor.abort();
+
+    /** Adds a new entry as the most recently used one. */
+    private void addEntry(Entry entry) {
+      if (compactIndex == null) {
+        lruEntries.put(entry.key, entry);
+        return;
       }
+      compactIndex.insert(entry.key);
+      saveEntry(entry);
     }
-    trimToSize();
-    journalWriter.close();
-    journalWriter = null;
-  }
 
-  private void trimToSize() throws IOException {
-    while (size > maxSize) {
-      Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-      remove(toEvict.getKey());
+    /**
+     * Writes the state of an entry returned by a lookup back to its slot.
+     * Entries of a map are updated in place, so this only matters for a
+     * compact index.
+     */
+    private void saveEntry(Entry entry) {
+      if (compactIndex == null) {
+        return;
+      }
+      int slot = compactIndex.find(entry.key);
+      compactIndex.setReadable(slot, entry.readable);
+      for (int i = 0; i < valueCount; i++) {
+        compactIndex.setLength(slot, i, entry.lengths[i]);
+        compactIndex.setLocation(slot, i, entry.locationOf(i));
+        compactIndex.setChecksum(slot, i, entry.checksumOf(i));
+      }
+      compactIndex.setSequenceNumber(slot, entry.sequenceNumber);
+      compactIndex.setExpiresAt(slot, entry.expiresAt);
+      if (entry.currentEditor != null || entry.readPending) {
+        pinned.put(entry.key, entry);
+      } else {
+        pinned.remove(entry.key);
+      }
     }
-  }
 
-  /**
-   * Closes the cache and deletes all of its stored values. This will delete
-   * all files in the cache directory including files that weren't created by
-   * the cache.
-   */
-  public void delete() throws IOException {
-    close();
-    Util.deleteContents(directory);
-  }
+    private void removeEntry(String key) {
+      if (compactIndex == null) {
+        lruEntries.remove(key);
+        return;
+      }
+      int slot = compactIndex.find(key);
+      if (slot != CompactIndex.NONE) {
+        compactIndex.setExpiresAt(slot, 0); // Makes its expiry queue elements stale.
+        compactIndex.remove(slot);
+      }
+      pinned.remove(key);
+    }
 
-  private void validateKey(String key) {
-    Matcher matcher = LEGAL_KEY_PATTERN.matcher(key);
-    if (!matcher.matches()) {
-      throw new IllegalArgumentException("keys must match regex [a-z0-9_-]{1,64}: \"" + key + "\"");
+    /** Returns the entries that are being edited. */
+    private List<Entry> editedEntries() {
+      List<Entry> result = new ArrayList<Entry>();
+      // Entries of a compact index are pinned while they're edited.
+      for (Entry entry : compactIndex != null ? pinned.values() : lruEntries.values()) {
+        if (entry.currentEditor != null) {
+          result.add(entry);
+        }
+      }
+      return result;
+    }
+
+    private int entryCount() {
+      return compactIndex != null ? compactIndex.size() : lruEntries.size();
+    }
+
+    /**
+     * Returns the entries from least to most recently used. Entries mustn't
+     * be added or removed while iterating.
+     */
+    private Iterable<Entry> entries() {
+      if (compactIndex == null) {
+        return lruEntries.values();
+      }
+      return new Iterable<Entry>() {
+        public Iterator<Entry> iterator() {
+          return new Iterator<Entry>() {
+            private int slot = compactIndex.eldest();
+
+            public boolean hasNext() {
+              return slot != CompactIndex.NONE;
+            }
+
+            public Entry next() {
+              if (slot == CompactIndex.NONE) {
+                throw new NoSuchElementException();
+              }
+              Entry entry = entryAt(slot);
+              slot = compactIndex.after(slot);
+              return entry;
+            }
+
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+      };
+    }
+
+    /** Returns the key of the least recently used entry, or null if there are none. */
+    private String eldestKey() {
+      if (compactIndex == null) {
+        return lruEntries.isEmpty() ? null : lruEntries.keySet().iterator().next();
+      }
+      int slot = compactIndex.eldest();
+      return slot != CompactIndex.NONE ? compactIndex.key(slot) : null;
+    }
+
+    private void clearEntries() {
+      if (compactIndex == null) {
+        lruEntries.clear();
+        return;
+      }
+      compactIndex.clear();
+      pinned.clear();
+    }
+
+    private void trimToSize() throws IOException {
+      while (size > maxSize) {
+        String toEvict = policy != null ? policy.victim() : eldestKey();
+        if (toEvict == null) {
+          break;
+        }
+        // Opened before the values are dropped, the streams keep them readable.
+        Snapshot snapshot = evictionListener != null ? openEvicted(toEvict) : null;
+        if (!remove(toEvict)) {
+          if (snapshot != null) {
+            snapshot.close();
+          }
+          break; // Being edited; its commit will trim again.
+        }
+        stats.increment(CacheStats.Counter.EVICTION);
+        if (snapshot != null) {
+          evicted.add(snapshot);
+        }
+      }
+    }
+
+    /** Opens the values of the entry about to be evicted, or returns null if it can't be. */
+    private Snapshot openEvicted(String key) throws IOException {
+      Entry entry = getEntry(key);
+      if (entry == null || !entry.readable || entry.currentEditor != null) {
+        return null;
+      }
+      return openSnapshot(entry, false);
+    }
+
+    /**
+     * Hands the snapshots of the entries evicted since the last call to the
+     * {@link EvictionListener}, without holding the lock. If the listener
+     * throws a runtime exception, the remaining snapshots are still handed
+     * over and the first exception is rethrown.
+     */
+    private void notifyEvicted() {
+      if (evictionListener == null) {
+        return;
+      }
+      Snapshot[] snapshots;
+      synchronized (this) {
+        if (evicted.isEmpty()) {
+          return;
+        }
+        snapshots = evicted.toArray(new Snapshot[evicted.size()]);
+        evicted.clear();
+      }
+      RuntimeException failure = null;
+      for (Snapshot snapshot : snapshots) {
+        try {
+          evictionListener.onEvicted(snapshot);
+        } catch (IOException e) {
+          // The entry is gone either way.
+        } catch (RuntimeException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        } finally {
+          snapshot.close();
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
     }
   }
 
@@ -654,12 +2971,15 @@ public final class DiskLruCache implements Closeable {
     private final String key;
     private final long sequenceNumber;
     private final InputStream[] ins;
+    private final long[] offsets;
     private final long[] lengths;
 
-    private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
+    private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] offsets,
+        long[] lengths) {
       this.key = key;
       this.sequenceNumber = sequenceNumber;
       this.ins = ins;
+      this.offsets = offsets;
       this.lengths = lengths;
     }
 
@@ -672,6 +2992,11 @@ public final class DiskLruCache implements Closeable {
       return DiskLruCache.this.edit(key, sequenceNumber);
     }
 
+    /** Returns the key of this snapshot's entry. */
+    public String getKey() {
+      return key;
+    }
+
     /** Returns the unbuffered stream with the value for {@code index}. */
     public InputStream getInputStream(int index) {
       return ins[index];
@@ -682,6 +3007,71 @@ public final class DiskLruCache implements Closeable {
       return inputStreamToString(getInputStream(index));
     }
 
+    /**
+     * Returns a channel over the file that holds the value for {@code index},
+     * or null if the value isn't read from a file. The value starts at {@link
+     * #getOffset} and is {@link #getLength} bytes long; a packed value shares
+     * its file with other values. The channel's position is the position of
+     * {@link #getInputStream}.
+     */
+    public FileChannel getChannel(int index) {
+      FileInputStream file = fileOf(index);
+      return file != null ? file.getChannel() : null;
+    }
+
+    /** Returns where the value for {@code index} starts in its file. */
+    public long getOffset(int index) {
+      return offsets[index];
+    }
+
+    /**
+     * Maps the value for {@code index} into memory read-only, or returns null
+     * if the value isn't read from a file. The mapping stays valid after this
+     * snapshot is closed.
+     */
+    public MappedByteBuffer map(int index) throws IOException {
+      FileChannel channel = getChannel(index);
+      if (channel == null) {
+        return null;
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, offsets[index], lengths[index]);
+    }
+
+    /**
+     * Returns the descriptor of a file that holds the value for {@code index}
+     * and nothing else, or null if the value isn't read from a file or shares
+     * its file with other values, as packed values do. Decoders may read the
+     * whole file from its start whatever the descriptor's position, as {@code
+     * BitmapFactory.decodeFileDescriptor} does up to Android 4.4, so a value
+     * in part of a file is only readable through {@link #getInputStream} or
+     * {@link #map}. The descriptor shares its position with {@link
+     * #getInputStream}, so only one of them should be read. It is closed with
+     * this snapshot.
+     */
+    public FileDescriptor getFileDescriptor(int index) throws IOException {
+      FileInputStream file = fileOf(index);
+      if (file == null) {
+        return null;
+      }
+      FileChannel channel = file.getChannel();
+      if (offsets[index] != 0 || lengths[index] != channel.size()) {
+        return null;
+      }
+      channel.position(0);
+      return file.getFD();
+    }
+
+    private FileInputStream fileOf(int index) {
+      InputStream in = ins[index];
+      if (in instanceof FileInputStream) {
+        return (FileInputStream) in;
+      }
+      if (in instanceof PackStore.ValueInputStream) {
+        return ((PackStore.ValueInputStream) in).getFile();
+      }
+      return null;
+    }
+
     /** Returns the byte length of the value for {@code index}. */
     public long getLength(int index) {
       return lengths[index];
@@ -694,6 +3084,95 @@ public final class DiskLruCache implements Closeable {
     }
   }
 
+  /**
+   * Checks a value against its checksum as it is read. Once the value has
+   * been read to its end, or ends early, a mismatch removes its entry and
+   * fails the read. A value that is closed before its end isn't checked.
+   */
+  private final class VerifyingInputStream extends FilterInputStream {
+    private final Segment segment;
+    private final String key;
+    private final long sequenceNumber;
+    private final long checksum;
+    private final CRC32 crc = new CRC32();
+    private long remaining;
+    private boolean verified;
+
+    private VerifyingInputStream(InputStream in, Entry entry, int index) {
+      super(in);
+      this.segment = entry.segment;
+      this.key = entry.key;
+      this.sequenceNumber = entry.sequenceNumber;
+      this.checksum = entry.checksums[index];
+      this.remaining = entry.lengths[index];
+    }
+
+    @Override public int read() throws IOException {
+      int b = in.read();
+      if (b == -1) {
+        verify();
+      } else {
+        crc.update(b);
+        advance(1);
+      }
+      return b;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+      int count = in.read(buffer, offset, length);
+      if (count == -1) {
+        verify();
+      } else {
+        crc.update(buffer, offset, count);
+        advance(count);
+      }
+      return count;
+    }
+
+    /** Reads the skipped bytes, which have to be checksummed too. */
+    @Override public long skip(long byteCount) throws IOException {
+      byte[] buffer = new byte[(int) Math.min(byteCount, 4096)];
+      long skipped = 0;
+      while (skipped < byteCount) {
+        int count = read(buffer, 0, (int) Math.min(byteCount - skipped, buffer.length));
+        if (count == -1) {
+          break;
+        }
+        skipped += count;
+      }
+      return skipped;
+    }
+
+    @Override public boolean markSupported() {
+      return false;
+    }
+
+    @Override public void mark(int readLimit) {
+    }
+
+    @Override public void reset() throws IOException {
+      throw new IOException("mark/reset not supported");
+    }
+
+    private void advance(int count) throws IOException {
+      remaining -= count;
+      if (remaining <= 0) {
+        verify();
+      }
+    }
+
+    private void verify() throws IOException {
+      if (verified) {
+        return;
+      }
+      if (remaining != 0 || crc.getValue() != checksum) {
+        segment.removeCorrupt(key, sequenceNumber);
+        throw new IOException("checksum mismatch in " + key);
+      }
+      verified = true;
+    }
+  }
+
   private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
     @Override
     public void write(int b) throws IOException {
@@ -707,6 +3186,17 @@ public final class DiskLruCache implements Closeable {
     private final boolean[] written;
     private boolean hasErrors;
     private boolean committed;
+    /** Where this edit's DIRTY record was appended, if it was appended. */
+    private JournalWriter dirtyJournal;
+    private long dirtyPosition;
+    /** The latest stream for each value when packing, by index. */
+    private PackingOutputStream[] packing;
+    /** Where {@link #commit} appended the buffered values, by index. */
+    private long[] packedLocations;
+    /** The expiry time set for the entry, or {@link #ANY_EXPIRY} for the default. */
+    private long expiresAt = ANY_EXPIRY;
+    /** The CRC32 of the bytes written to the latest stream for each value, by index. */
+    private final CRC32[] crcs = new CRC32[valueCount];
 
     private Editor(Entry entry) {
       this.entry = entry;
@@ -718,7 +3208,7 @@ public final class DiskLruCache implements Closeable {
      * or null if no value has been committed.
      */
     public InputStream newInputStream(int index) throws IOException {
-      synchronized (DiskLruCache.this) {
+      synchronized (entry.segment) {
         if (entry.currentEditor != this) {
           throw new IllegalStateException();
         }
@@ -726,7 +3216,7 @@ public final class DiskLruCache implements Closeable {
           return null;
         }
         try {
-          return new FileInputStream(entry.getCleanFile(index));
+          return entry.openValue(index);
         } catch (FileNotFoundException e) {
           return null;
         }
@@ -750,29 +3240,129 @@ public final class DiskLruCache implements Closeable {
      * IOExceptions.
      */
     public OutputStream newOutputStream(int index) throws IOException {
-      synchronized (DiskLruCache.this) {
+      if (storage == Storage.PACK) {
+        synchronized (entry.segment) {
+          if (entry.currentEditor != this) {
+            throw new IllegalStateException();
+          }
+          if (!entry.readable) {
+            written[index] = true;
+          }
+          if (packing == null) {
+            packing = new PackingOutputStream[valueCount];
+          }
+          packing[index] = new PackingOutputStream(index);
+          return new FaultHidingOutputStream(packing[index], index);
+        }
+      }
+      OutputStream outputStream = newDirtyFileStream(index, true);
+      return outputStream != null
+          ? new FaultHidingOutputStream(outputStream, index)
+          : NULL_OUTPUT_STREAM;
+    }
+
+    /**
+     * Creates the dirty file for the value at {@code index}. Returns null if
+     * it can't be created or, unless {@code checkEditor} is true, if this
+     * edit is already over.
+     */
+    private OutputStream newDirtyFileStream(int index, boolean checkEditor)
+        throws IOException {
+      if (dirtyJournal != null) {
+        // The DIRTY record must be on disk before the file it accounts for.
+        dirtyJournal.await(dirtyPosition, false);
+        dirtyJournal = null;
+      }
+      synchronized (entry.segment) {
         if (entry.currentEditor != this) {
-          throw new IllegalStateException();
+          if (checkEditor) {
+            throw new IllegalStateException();
+          }
+          return null;
         }
         if (!entry.readable) {
           written[index] = true;
         }
         File dirtyFile = entry.getDirtyFile(index);
-        FileOutputStream outputStream;
+        entry.segment.keepFile(dirtyFile);
         try {
-          outputStream = new FileOutputStream(dirtyFile);
+          return new FileOutputStream(dirtyFile);
         } catch (FileNotFoundException e) {
           // Attempt to recreate the cache directory.
-          directory.mkdirs();
+          entry.segment.directory.mkdirs();
           try {
-            outputStream = new FileOutputStream(dirtyFile);
+            return new FileOutputStream(dirtyFile);
           } catch (FileNotFoundException e2) {
             // We are unable to recover. Silently eat the writes.
-            return NULL_OUTPUT_STREAM;
+            return null;
+          }
+        }
+      }
+    }
+
+    /** Returns the checksum of the value written at {@code index}, or {@link #NO_CHECKSUM}. */
+    private long checksumOf(int index) {
+      return crcs[index] != null ? crcs[index].getValue() : NO_CHECKSUM;
+    }
+
+    /** Returns where the value at {@code index} was packed, or {@link #IN_FILE}. */
+    private long packedLocation(int index) {
+      return packedLocations != null ? packedLocations[index] : IN_FILE;
+    }
+
+    /**
+     * Appends the values that are still buffered in memory to the segment's
+     * packs. Failing to append fails the edit, like a failed write would.
+     */
+    private void appendPacked() {
+      if (packing == null) {
+        return;
+      }
+      PackStore packs = entry.segment.packStore;
+      try {
+        for (int i = 0; i < valueCount; i++) {
+          PackingOutputStream out = packing[i];
+          if (out == null || out.file != null) {
+            continue;
           }
+          if (packedLocations == null) {
+            packedLocations = new long[valueCount];
+            Arrays.fill(packedLocations, IN_FILE);
+          }
+          packedLocations[i] = packs.append(out.buffer, 0, out.count);
+        }
+        if (packedLocations != null && durability == Durability.EVERY_COMMIT) {
+          packs.sync(); // Before the CLEAN record can reach the disk.
+        }
+      } catch (IOException e) {
+        hasErrors = true;
+      }
+    }
+
+    /** Drops the values appended by {@link #appendPacked}. */
+    private void releasePacked() {
+      if (packedLocations == null) {
+        return;
+      }
+      for (int i = 0; i < valueCount; i++) {
+        if (packedLocations[i] != IN_FILE) {
+          entry.segment.packStore.release(packedLocations[i], packing[i].count);
         }
-        return new FaultHidingOutputStream(outputStream);
       }
+      packedLocations = null;
+    }
+
+    /**
+     * Makes the entry expire at {@code expiresAtMillis}, in {@link
+     * System#currentTimeMillis} time, once this edit is committed. Zero means
+     * it never expires. Edits that don't call this use {@link
+     * Options#timeToLiveMillis}.
+     */
+    public void setExpiresAt(long expiresAtMillis) {
+      if (expiresAtMillis < 0) {
+        throw new IllegalArgumentException("expiresAtMillis < 0");
+      }
+      this.expiresAt = expiresAtMillis;
     }
 
     /** Sets the value at {@code index} to {@code value}. */
@@ -791,11 +3381,12 @@ public final class DiskLruCache implements Closeable {
      * edit lock so another edit may be started on the same key.
      */
     public void commit() throws IOException {
+      appendPacked();
       if (hasErrors) {
-        completeEdit(this, false);
+        entry.segment.completeEdit(this, false);
         remove(entry.key); // The previous entry is stale.
       } else {
-        completeEdit(this, true);
+        entry.segment.completeEdit(this, true);
       }
       committed = true;
     }
@@ -805,7 +3396,7 @@ public final class DiskLruCache implements Closeable {
      * started on the same key.
      */
     public void abort() throws IOException {
-      completeEdit(this, false);
+      entry.segment.completeEdit(this, false);
     }
 
     public void abortUnlessCommitted() {
@@ -817,14 +3408,100 @@ public final class DiskLruCache implements Closeable {
       }
     }
 
+    /**
+     * Buffers a value in memory so that it can be appended to a pack when the
+     * edit is committed. A value that outgrows {@link
+     * Options#maxPackedValueSize} is moved to a dirty file instead.
+     */
+    private final class PackingOutputStream extends OutputStream {
+      private final int index;
+      private byte[] buffer;
+      private int count;
+      /** The dirty file once the value has spilled over, or null. */
+      private OutputStream file;
+
+      private PackingOutputStream(int index) {
+        this.index = index;
+        this.buffer = new byte[Math.min(maxPackedValueSize, 1024)];
+      }
+
+      @Override public void write(int oneByte) throws IOException {
+        if (file == null && !ensureCapacity(1)) {
+          spill();
+        }
+        if (file != null) {
+          file.write(oneByte);
+        } else {
+          buffer[count++] = (byte) oneByte;
+        }
+      }
+
+      @Override public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (file == null && !ensureCapacity(length)) {
+          spill();
+        }
+        if (file != null) {
+          file.write(bytes, offset, length);
+        } else {
+          System.arraycopy(bytes, offset, buffer, count, length);
+          count += length;
+        }
+      }
+
+      private boolean ensureCapacity(int length) {
+        int needed = count + length;
+        if (needed <= buffer.length) {
+          return true;
+        }
+        if (needed > maxPackedValueSize || needed < 0) {
+          return false;
+        }
+        byte[] grown = new byte[Math.max(needed, Math.min(buffer.length * 2, maxPackedValueSize))];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        buffer = grown;
+        return true;
+      }
+
+      private void spill() throws IOException {
+        file = newDirtyFileStream(index, false);
+        if (file == null) {
+          throw new IOException("failed to create " + entry.getDirtyFile(index));
+        }
+        file.write(buffer, 0, count);
+        buffer = null;
+        count = 0;
+      }
+
+      @Override public void flush() throws IOException {
+        if (file != null) {
+          file.flush();
+        }
+      }
+
+      @Override public void close() throws IOException {
+        if (file != null) {
+          file.close();
+        }
+      }
+    }
+
+    /**
+     * Hides the errors of a value's stream until the edit is committed, and
+     * checksums the bytes as they are written so that the value never has
+     * to be read back.
+     */
     private class FaultHidingOutputStream extends FilterOutputStream {
-      private FaultHidingOutputStream(OutputStream out) {
+      private final CRC32 crc = new CRC32();
+
+      private FaultHidingOutputStream(OutputStream out, int index) {
         super(out);
+        crcs[index] = crc;
       }
 
       @Override public void write(int oneByte) {
         try {
           out.write(oneByte);
+          crc.update(oneByte);
         } catch (IOException e) {
           hasErrors = true;
         }
@@ -833,6 +3510,7 @@ public final class DiskLruCache implements Closeable {
       @Override public void write(byte[] buffer, int offset, int length) {
         try {
           out.write(buffer, offset, length);
+          crc.update(buffer, offset, length);
         } catch (IOException e) {
           hasErrors = true;
         }
@@ -856,7 +3534,34 @@ public final class DiskLruCache implements Closeable {
     }
   }
 
+  /**
+   * An entry's place in its segment's expiry queue. Entries of a compact
+   * index are queued by slot rather than as objects.
+   */
+  private static final class Expiry implements Comparable<Expiry> {
+    private final Entry entry;
+    private final int slot;
+    private final long expiresAt;
+
+    private Expiry(Entry entry) {
+      this.entry = entry;
+      this.slot = CompactIndex.NONE;
+      this.expiresAt = entry.expiresAt;
+    }
+
+    private Expiry(int slot, long expiresAt) {
+      this.entry = null;
+      this.slot = slot;
+      this.expiresAt = expiresAt;
+    }
+
+    public int compareTo(Expiry other) {
+      return expiresAt < other.expiresAt ? -1 : (expiresAt == other.expiresAt ? 0 : 1);
+    }
+  }
+
   private final class Entry {
+    private final Segment segment;
     private final String key;
 
     /** Lengths of this entry's files. */
@@ -871,44 +3576,132 @@ public final class DiskLruCache implements Closeable {
     /** The sequence number of the most recently committed edit to this entry. */
     private long sequenceNumber;
 
-    private Entry(String key) {
+    /** When this entry expires, in milliseconds since the epoch, or zero if it doesn't. */
+    private long expiresAt;
+
+    /** True if this entry's next READ record hasn't been written yet. */
+    private boolean readPending;
+    /** When this entry was last read, on its segment's read clock. */
+    private long lastRead;
+
+    /**
+     * Where each value is stored in the segment's packs, or {@link #IN_FILE}
+     * for values in their own files. Null if every value is in its own file.
+     */
+    private long[] locations;
+
+    /**
+     * The CRC32 of each value, or {@link #NO_CHECKSUM} for values written
+     * without one. Null if no value has a checksum.
+     */
+    private long[] checksums;
+
+    private Entry(Segment segment, String key) {
+      this.segment = segment;
       this.key = key;
       this.lengths = new long[valueCount];
     }
 
-    public String getLengths() throws IOException {
-      StringBuilder result = new StringBuilder();
-      for (long size : lengths) {
-        result.append(' ').append(size);
+    /** Builds this entry's CLEAN record into {@code record}. */
+    private void writeCleanRecord(BinaryJournal.RecordBuilder record) {
+      record.begin(BinaryJournal.CLEAN, key);
+      for (long length : lengths) {
+        record.varint(length);
+      }
+      if (locations != null || expiresAt != 0 || checksums != null) {
+        for (int i = 0; i < valueCount; i++) {
+          record.varint(locationOf(i) + 1);
+        }
+        if (expiresAt != 0 || checksums != null) {
+          record.varint(expiresAt);
+        }
+        if (checksums != null) {
+          for (long checksum : checksums) {
+            record.varint(checksum + 1);
+          }
+        }
       }
-      return result.toString();
     }
 
-    /** Set lengths using decimal numbers like "10123". */
-    private void setLengths(String[] strings) throws IOException {
-      if (strings.length != valueCount) {
-        throw invalidLengths(strings);
+    private boolean isExpired(long now) {
+      return expiresAt != 0 && expiresAt <= now;
+    }
+
+    private long totalLength() {
+      long total = 0;
+      for (long length : lengths) {
+        total += length;
       }
+      return total;
+    }
 
-      try {
-        for (int i = 0; i < strings.length; i++) {
-          lengths[i] = Long.parseLong(strings[i]);
+    private long locationOf(int i) {
+      return locations != null ? locations[i] : IN_FILE;
+    }
+
+    private void setLocation(int i, long location) {
+      if (locations == null) {
+        if (location == IN_FILE) {
+          return;
+        }
+        locations = new long[valueCount];
+        Arrays.fill(locations, IN_FILE);
+      } else if (location == IN_FILE) {
+        locations[i] = IN_FILE;
+        for (long other : locations) {
+          if (other != IN_FILE) {
+            return;
+          }
+        }
+        locations = null;
+        return;
+      }
+      locations[i] = location;
+    }
+
+    private long checksumOf(int i) {
+      return checksums != null ? checksums[i] : NO_CHECKSUM;
+    }
+
+    private void setChecksum(int i, long checksum) {
+      if (checksums == null) {
+        if (checksum == NO_CHECKSUM) {
+          return;
+        }
+        checksums = new long[valueCount];
+        Arrays.fill(checksums, NO_CHECKSUM);
+      } else if (checksum == NO_CHECKSUM) {
+        checksums[i] = NO_CHECKSUM;
+        for (long other : checksums) {
+          if (other != NO_CHECKSUM) {
+            return;
+          }
         }
-      } catch (NumberFormatException e) {
-        throw invalidLengths(strings);
+        checksums = null;
+        return;
       }
+      checksums[i] = checksum;
     }
 
-    private IOException invalidLengths(String[] strings) throws IOException {
-      throw new IOException("unexpected journal line: " + java.util.Arrays.toString(strings));
+    /** Opens the committed value at {@code i}, wherever it is stored. */
+    private InputStream openValue(int i) throws IOException {
+      long location = locationOf(i);
+      if (location == IN_FILE) {
+        return new FileInputStream(getCleanFile(i));
+      }
+      if (lengths[i] == 0) {
+        // Doesn't keep its pack alive, which may be gone.
+        return new ByteArrayInputStream(new byte[0]);
+      }
+      return segment.packStore.open(location, lengths[i]);
     }
 
     public File getCleanFile(int i) {
-      return new File(directory, key + "." + i);
+      return new File(segment.directory, key + "." + i);
     }
 
     public File getDirtyFile(int i) {
-      return new File(directory, key + "." + i + ".tmp");
+      return new File(segment.directory, key + "." + i + ".tmp");
     }
   }
 }
@@ -2,11 +2,15 @@ package org.linuxmotion.asyncloaders;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 
 import android.content.Context;
@@ -27,18 +31,89 @@ import android.util.Log;
  */
 public class DiskLruImageCache {
 
+    // The hot tier, and the only one unless the cache is tiered
     private DiskLruCache mDiskCache;
+    // The larger, slower tier the hot one demotes to; null unless tiered
+    private DiskLruCache mColdCache;
+    private CacheStats mStats;
     private CompressFormat mCompressFormat = CompressFormat.JPEG;
     private int mCompressQuality = 70;
-    private static final int APP_VERSION = 1;
+    // 2: keys carry the size bucket of the image
+    private static final int APP_VERSION = 2;
     private static final int VALUE_COUNT = 1;
+    // Loader threads hit the disk cache concurrently, give them separate locks
+    private static final int SEGMENT_COUNT = 4;
     private static final String TAG = "DiskLruImageCache";
+    // Bitmaps the writer thread compresses and commits before it flushes the journal
+    private static final int WRITE_BATCH_SIZE = 8;
+
+    /**
+     * An image {@link #readImage read} but not decoded yet: the compressed
+     * bytes of a value, or a bitmap still queued for the writer, held for the
+     * reader. Pass it to {@link #decodeImage} or {@link #releaseImage}.
+     */
+    public static final class EncodedImage {
+        private final String mKey;
+        private final byte[] mData;
+        private final Bitmap mBitmap;
+
+        private EncodedImage( String key, byte[] data, Bitmap bitmap ) {
+            mKey = key;
+            mData = data;
+            mBitmap = bitmap;
+        }
+    }
+
+    /** What {@link #put} does when the write-behind queue is full. */
+    public enum Backpressure {
+        /** Drops the new bitmap. */
+        DROP,
+        /** Waits for the writer to make room. */
+        BLOCK,
+        /** Drops the oldest queued bitmap, so the queue holds the latest puts. */
+        COALESCE
+    }
+
+    private final Object mWriteLock = new Object();
+    // Bitmaps waiting for the writer, oldest first; null unless write-behind was started
+    private LinkedHashMap<String, Bitmap> mPendingWrites;
+    // The batch the writer is working on
+    private final LinkedHashMap<String, Bitmap> mWriting = new LinkedHashMap<String, Bitmap>();
+    private int mWriteQueueCapacity;
+    private Backpressure mBackpressure;
+    // The writer thread, and whether it should end once the queue is written
+    private Thread mWriter;
+    private boolean mStopWriting;
+    // Decodes draw on it and queued bitmaps are held in it; null if there is none
+    private volatile BitmapPool mBitmapPool;
 
     public DiskLruImageCache( Context context,String uniqueName, int diskCacheSize,
                               CompressFormat compressFormat, int quality ) {
+        this( context, uniqueName, diskCacheSize, compressFormat, quality, defaultOptions() );
+    }
+
+    /**
+     * Creates the cache with the default options, recording its statistics
+     * and timings in {@code stats}.
+     */
+    public DiskLruImageCache( Context context,String uniqueName, int diskCacheSize,
+                              CompressFormat compressFormat, int quality, CacheStats stats ) {
+        this( context, uniqueName, diskCacheSize, compressFormat, quality,
+                defaultOptions( stats ) );
+    }
+
+    /**
+     * Creates the cache with the given disk cache options, which pick the
+     * eviction policy, admission filter, storage and segment count.
+     */
+    public DiskLruImageCache( Context context,String uniqueName, int diskCacheSize,
+                              CompressFormat compressFormat, int quality,
+                              DiskLruCache.Options options ) {
         try {
             final File diskCacheDir = getDiskCacheDir(context, uniqueName );
-            mDiskCache = DiskLruCache.open( diskCacheDir, APP_VERSION, VALUE_COUNT, diskCacheSize );
+            mDiskCache = DiskLruCache.open( diskCacheDir, APP_VERSION, VALUE_COUNT, diskCacheSize,
+                    options );
+            mStats = mDiskCache.getStats();
             mCompressFormat = compressFormat;
             mCompressQuality = quality;
         } catch (IOException e) {
@@ -46,12 +121,142 @@ public class DiskLruImageCache {
         }
     }
 
+    /**
+     * Creates a two tier cache. New and recently read images are kept within
+     * {@code hotCacheSize} bytes on internal storage, which is fast for small
+     * random reads. The images it evicts are moved to a tier of {@code
+     * coldCacheSize} bytes on external storage, and are moved back when they
+     * are read again. Without writable external storage, a single tier of
+     * both sizes is kept on internal storage; if internal storage can't be
+     * opened, the single tier is kept on external storage instead.
+     */
+    public DiskLruImageCache( Context context, String uniqueName, int hotCacheSize,
+                              int coldCacheSize, CompressFormat compressFormat, int quality,
+                              CacheStats stats ) {
+        mCompressFormat = compressFormat;
+        mCompressQuality = quality;
+        final DiskLruCache.Options options = defaultOptions( stats );
+        int internalSize = hotCacheSize + coldCacheSize;
+        if ( FileUtils.isExternalStorageMountedandWritable() ) {
+            try {
+                // Statistics of its own, a cold hit follows a hot miss
+                mColdCache = DiskLruCache.open(
+                        new File( context.getExternalCacheDir(), uniqueName ),
+                        APP_VERSION, VALUE_COUNT, coldCacheSize, defaultOptions( null ) );
+                options.evictionListener = mDemoter;
+                internalSize = hotCacheSize;
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            mDiskCache = DiskLruCache.open( new File( context.getCacheDir(), uniqueName ),
+                    APP_VERSION, VALUE_COUNT, internalSize, options );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            if ( mColdCache != null ) {
+                // Keep the external tier as the only one, sized and counted like both
+                final DiskLruCache cold = mColdCache;
+                mColdCache = null;
+                try {
+                    cold.close();
+                    mDiskCache = DiskLruCache.open( cold.getDirectory(), APP_VERSION, VALUE_COUNT,
+                            hotCacheSize + coldCacheSize, defaultOptions( stats ) );
+                } catch ( IOException e2 ) {
+                    e2.printStackTrace();
+                }
+            }
+        }
+        if ( mDiskCache != null ) {
+            mStats = mDiskCache.getStats();
+        }
+    }
+
+    /**
+     * Creates the cache with the default options and a share of {@code
+     * budget}, which grows or shrinks with how often this cache is hit
+     * compared to the other caches sharing the budget.
+     */
+    public DiskLruImageCache( Context context, String uniqueName, DiskBudgetManager budget,
+                              CompressFormat compressFormat, int quality, CacheStats stats ) {
+        try {
+            mDiskCache = budget.open( getDiskCacheDir( context, uniqueName ), APP_VERSION,
+                    VALUE_COUNT, defaultOptions( stats ) );
+            mStats = mDiskCache.getStats();
+            mCompressFormat = compressFormat;
+            mCompressQuality = quality;
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
+    // Runs on the hot tier's background thread, copying evicted images to the cold tier
+    private final DiskLruCache.EvictionListener mDemoter = new DiskLruCache.EvictionListener() {
+        public void onEvicted( DiskLruCache.Snapshot snapshot ) throws IOException {
+            final DiskLruCache.Editor editor = mColdCache.edit( snapshot.getKey() );
+            if ( editor == null ) {
+                return;
+            }
+            try {
+                copy( snapshot.getInputStream( 0 ), editor );
+                editor.commit();
+                mStats.increment( CacheStats.Counter.DEMOTION );
+            } finally {
+                editor.abortUnlessCommitted();
+            }
+        }
+    };
+
+    private static DiskLruCache.Options defaultOptions() {
+        return defaultOptions( null );
+    }
+
+    private static DiskLruCache.Options defaultOptions( CacheStats stats ) {
+        final DiskLruCache.Options options = new DiskLruCache.Options();
+        options.stats = stats;
+        options.segmentCount = SEGMENT_COUNT;
+        // Thumbnails are a few KB each, cheaper appended to packs than as files
+        options.storage = DiskLruCache.Storage.PACK;
+        // Keep the images shown on every screen when the user flings through a gallery
+        options.eviction = DiskLruCache.Eviction.TINY_LFU;
+        // Catch truncated or damaged images without checking every read
+        options.verification = DiskLruCache.Verification.SAMPLED;
+        return options;
+    }
+
+    /**
+     * Decodes images into the free bitmaps of {@code pool} where they fit.
+     * Bitmaps queued for the writer are held in the pool until they are
+     * written, and {@link #getBitmap} returns bitmaps held for the caller.
+     * Set it before {@link #startWriteBehind}.
+     */
+    public void setBitmapPool( BitmapPool pool ) {
+        mBitmapPool = pool;
+    }
+
+    private void hold( Bitmap bitmap ) {
+        final BitmapPool pool = mBitmapPool;
+        if ( pool != null ) {
+            pool.acquire( bitmap );
+        }
+    }
+
+    private void unhold( Bitmap bitmap ) {
+        final BitmapPool pool = mBitmapPool;
+        if ( pool != null ) {
+            pool.release( bitmap );
+        }
+    }
+
     private boolean writeBitmapToFile( Bitmap bitmap, DiskLruCache.Editor editor )
             throws IOException, FileNotFoundException {
         OutputStream out = null;
         try {
             out = new BufferedOutputStream( editor.newOutputStream( 0 ), FileUtils.IO_BUFFER_SIZE );
-            return bitmap.compress( mCompressFormat, mCompressQuality, out );
+            final long start = System.nanoTime();
+            final boolean compressed = bitmap.compress( mCompressFormat, mCompressQuality, out );
+            mStats.recordSince( CacheStats.Latency.COMPRESS, start );
+            return compressed;
         } finally {
             if ( out != null ) {
                 out.close();
@@ -71,7 +276,221 @@ public class DiskLruImageCache {
         return new File(cachePath + File.separator + uniqueName);
     }
 
+    /**
+     * Hands {@code put} over to a background writer thread, which compresses
+     * and commits the queued bitmaps in batches. Queued bitmaps are returned
+     * by {@link #getBitmap} and {@link #containsKey} until they are on disk.
+     * A put for a key that is already queued replaces the queued bitmap.
+     * Call {@link #stopWriteBehind} or {@link #close} when done with the
+     * cache: until then the writer thread keeps running, and bitmaps still
+     * queued when the process ends are never written.
+     *
+     * @param queueCapacity the most bitmaps waiting to be written
+     * @param backpressure what a put does when the queue is full
+     */
+    public void startWriteBehind( int queueCapacity, Backpressure backpressure ) {
+        if ( queueCapacity <= 0 ) {
+            throw new IllegalArgumentException( "queueCapacity <= 0" );
+        }
+        synchronized ( mWriteLock ) {
+            if ( mPendingWrites != null ) {
+                return;
+            }
+            mPendingWrites = new LinkedHashMap<String, Bitmap>();
+            mWriteQueueCapacity = queueCapacity;
+            mBackpressure = backpressure;
+            mWriter = new Thread( new Runnable() {
+                public void run() {
+                    writeBehind();
+                }
+            }, TAG + " writer" );
+            mWriter.setDaemon( true );
+            mWriter.setPriority( Thread.MIN_PRIORITY );
+            mWriter.start();
+        }
+    }
+
+    /**
+     * Writes the bitmaps still queued, then ends the writer thread; puts
+     * write on the caller's thread again afterwards. Waits for the writer,
+     * so not on the UI thread. If the wait is interrupted, the bitmaps that
+     * weren't written yet are dropped instead.
+     */
+    public void stopWriteBehind() {
+        final Thread writer;
+        synchronized ( mWriteLock ) {
+            writer = mWriter;
+            if ( writer == null ) {
+                return;
+            }
+            mStopWriting = true;
+            mWriteLock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch ( InterruptedException e ) {
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the write-behind thread after writing what is queued, and closes
+     * the disk cache. Its files stay on disk for the next one opened.
+     */
+    public void close() {
+        stopWriteBehind();
+        try {
+            mDiskCache.close();
+            if ( mColdCache != null ) {
+                mColdCache.close();
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+    }
+
     public void put( String key, Bitmap data ) {
+        synchronized ( mWriteLock ) {
+            if ( mPendingWrites != null && enqueue( key, data ) ) {
+                return;
+            }
+        }
+        write( key, data, true );
+    }
+
+    /** Returns false if write-behind stopped while the put waited for room. */
+    private boolean enqueue( String key, Bitmap data ) {
+        if ( mPendingWrites.containsKey( key ) ) {
+            hold( data );
+            unhold( mPendingWrites.put( key, data ) ); // Keeps its place in the queue
+            return true;
+        }
+        while ( mPendingWrites.size() >= mWriteQueueCapacity ) {
+            if ( mBackpressure == Backpressure.DROP ) {
+                return true;
+            } else if ( mBackpressure == Backpressure.COALESCE ) {
+                final Iterator<Bitmap> oldest = mPendingWrites.values().iterator();
+                unhold( oldest.next() );
+                oldest.remove();
+            } else {
+                try {
+                    mWriteLock.wait();
+                } catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+                if ( mPendingWrites == null ) {
+                    return false;
+                }
+            }
+        }
+        hold( data );
+        mPendingWrites.put( key, data );
+        mWriteLock.notifyAll();
+        return true;
+    }
+
+    /**
+     * Runs on the writer thread, writing queued bitmaps a batch at a time
+     * until {@link #stopWriteBehind} finds the queue empty or interrupts it.
+     */
+    private void writeBehind() {
+        while ( true ) {
+            synchronized ( mWriteLock ) {
+                if ( Thread.interrupted() ) {
+                    // The stop isn't waiting any longer, drop the rest
+                    endWriteBehind();
+                    return;
+                }
+                while ( mPendingWrites.isEmpty() ) {
+                    if ( mStopWriting ) {
+                        endWriteBehind();
+                        return;
+                    }
+                    try {
+                        mWriteLock.wait();
+                    } catch ( InterruptedException e ) {
+                        endWriteBehind();
+                        return;
+                    }
+                }
+                // Move the batch aside, where lookups still find it until it's written
+                final Iterator<Map.Entry<String, Bitmap>> i = mPendingWrites.entrySet().iterator();
+                while ( i.hasNext() && mWriting.size() < WRITE_BATCH_SIZE ) {
+                    final Map.Entry<String, Bitmap> pending = i.next();
+                    mWriting.put( pending.getKey(), pending.getValue() );
+                    i.remove();
+                }
+                // Room for blocked puts
+                mWriteLock.notifyAll();
+            }
+
+            for ( Map.Entry<String, Bitmap> pending : mWriting.entrySet() ) {
+                try {
+                    write( pending.getKey(), pending.getValue(), false );
+                } catch ( RuntimeException e ) {
+                    // A recycled bitmap or a cleared cache, skip it
+                    Log.w( TAG, "Could not write " + pending.getKey(), e );
+                }
+            }
+            try {
+                // Once per batch rather than once per bitmap
+                mDiskCache.flush();
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            } catch ( IllegalStateException e ) {
+                // The cache was cleared
+            }
+
+            synchronized ( mWriteLock ) {
+                // Under the lock, so that a lookup holds a queued bitmap before it is let go
+                for ( Bitmap written : mWriting.values() ) {
+                    unhold( written );
+                }
+                mWriting.clear();
+            }
+        }
+    }
+
+    // Under mWriteLock on the writer thread, dropping whatever is still queued
+    private void endWriteBehind() {
+        for ( Bitmap pending : mPendingWrites.values() ) {
+            unhold( pending );
+        }
+        mPendingWrites = null;
+        mWriter = null;
+        mStopWriting = false;
+        // Blocked puts write on their own threads now
+        mWriteLock.notifyAll();
+    }
+
+    /** Returns the bitmap queued for {@code key}, or null if none is. */
+    private Bitmap pendingBitmap( String key ) {
+        synchronized ( mWriteLock ) {
+            if ( mPendingWrites == null ) {
+                return null;
+            }
+            final Bitmap pending = mPendingWrites.get( key );
+            return pending != null ? pending : mWriting.get( key );
+        }
+    }
+
+    /** Returns the bitmap queued for {@code key}, held for the caller, or null if none is. */
+    private Bitmap holdPendingBitmap( String key ) {
+        synchronized ( mWriteLock ) {
+            final Bitmap pending = pendingBitmap( key );
+            if ( pending != null ) {
+                hold( pending );
+            }
+            return pending;
+        }
+    }
+
+    private void write( String key, Bitmap data, boolean flush ) {
+        if ( data.isRecycled() ) {
+            return;
+        }
 
         DiskLruCache.Editor editor = null;
         try {
@@ -82,8 +501,12 @@ public class DiskLruImageCache {
             }
 
             if( writeBitmapToFile( data, editor ) ) {
-                mDiskCache.flush();
+                final long start = System.nanoTime();
+                if ( flush ) {
+                    mDiskCache.flush();
+                }
                 editor.commit();
+                mStats.recordSince( CacheStats.Latency.COMMIT, start );
                 if ( Constants.DEBUG ) {
                     Log.d( "cache_test_DISK_", "image put on disk cache " + key );
                 }
@@ -103,58 +526,308 @@ public class DiskLruImageCache {
                 }
             } catch (IOException ignored) {
             }
+        } catch ( IllegalStateException e ) {
+            // The cache was closed meanwhile
         }
 
     }
 
+    /**
+     * Returns the image of {@code key}, or null. With a {@link #setBitmapPool
+     * bitmap pool}, the bitmap is held in it for the caller, who releases it.
+     */
     public Bitmap getBitmap( String key ) {
 
+        Bitmap bitmap = holdPendingBitmap( key );
+        if ( bitmap != null ) {
+            return bitmap;
+        }
+        bitmap = readBitmap( key );
+        if ( bitmap == null && mColdCache != null ) {
+            bitmap = promote( key );
+        }
+        if ( bitmap != null ) {
+            hold( bitmap );
+        }
+
+        if ( Constants.DEBUG ) {
+            Log.d( "cache_test_DISK_", bitmap == null ? "" : "image read from disk " + key);
+        }
+
+        return bitmap;
+
+    }
+
+    /**
+     * Reads {@code key}'s image without decoding it, so that a loader can read
+     * on its I/O thread and decode on another, or returns null. An image
+     * found in the cold tier is moved to the hot tier as it is.
+     */
+    public EncodedImage readImage( String key ) {
+        final Bitmap pending = holdPendingBitmap( key );
+        if ( pending != null ) {
+            return new EncodedImage( key, null, pending );
+        }
+        byte[] data = readBytes( mDiskCache, key );
+        if ( data == null && mColdCache != null ) {
+            data = readBytes( mColdCache, key );
+            if ( data != null ) {
+                promote( key, data );
+            }
+        }
+        return data != null ? new EncodedImage( key, data, null ) : null;
+    }
+
+    /**
+     * Decodes an image returned by {@link #readImage}, into a free pooled
+     * bitmap if one fits, or returns null. Like {@link #getBitmap}, the
+     * bitmap is held for the caller.
+     */
+    public Bitmap decodeImage( EncodedImage image ) {
+        if ( image.mBitmap != null ) {
+            return image.mBitmap;
+        }
+        final long start = System.nanoTime();
+        final Bitmap bitmap = decode( image.mData );
+        mStats.recordSince( CacheStats.Latency.DECODE, start );
+        if ( bitmap == null ) {
+            // Undecodable, don't pay for reading it again
+            try {
+                mDiskCache.remove( image.mKey );
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+        hold( bitmap );
+        return bitmap;
+    }
+
+    /** Lets go of an image returned by {@link #readImage} that won't be decoded. */
+    public void releaseImage( EncodedImage image ) {
+        if ( image.mBitmap != null ) {
+            unhold( image.mBitmap );
+        }
+    }
+
+    /** Reads and decodes {@code key}'s image from the hot tier. */
+    private Bitmap readBitmap( String key ) {
         Bitmap bitmap = null;
         DiskLruCache.Snapshot snapshot = null;
         try {
 
+            long start = System.nanoTime();
             snapshot = mDiskCache.get( key );
+            mStats.recordSince( CacheStats.Latency.DISK_READ, start );
             if ( snapshot == null ) {
                 return null;
             }
-            final InputStream in = snapshot.getInputStream( 0 );
-            if ( in != null ) {
-                final BufferedInputStream buffIn =
-                        new BufferedInputStream( in, FileUtils.IO_BUFFER_SIZE );
-                bitmap = BitmapFactory.decodeStream( buffIn );
+            start = System.nanoTime();
+            bitmap = decode( snapshot );
+            mStats.recordSince( CacheStats.Latency.DECODE, start );
+            if ( bitmap == null ) {
+                // Undecodable, don't pay for decoding it again
+                mDiskCache.remove( key );
             }
         } catch ( IOException e ) {
+            // Including a value that failed its checksum, which is removed by now
             e.printStackTrace();
+            if ( bitmap != null ) {
+                bitmap.recycle();
+                bitmap = null;
+            }
         } finally {
             if ( snapshot != null ) {
                 snapshot.close();
             }
         }
+        return bitmap;
+    }
 
-        if ( Constants.DEBUG ) {
-            Log.d( "cache_test_DISK_", bitmap == null ? "" : "image read from disk " + key);
+    /** Decodes the value of {@code snapshot}, into a free pooled bitmap if one fits. */
+    private Bitmap decode( DiskLruCache.Snapshot snapshot ) throws IOException {
+        final BitmapPool pool = mBitmapPool;
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        // Decoding straight from the descriptor skips copying the image
+        // through stream buffers. There is only one for a value in a file of
+        // its own; packed values are decoded from their streams.
+        if ( snapshot.getFileDescriptor( 0 ) != null ) {
+            if ( pool != null ) {
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFileDescriptor( snapshot.getFileDescriptor( 0 ), null, options );
+                options.inJustDecodeBounds = false;
+                pool.prepare( options );
+            }
+            try {
+                // Each call moves the descriptor back to the start of the file
+                return BitmapFactory.decodeFileDescriptor( snapshot.getFileDescriptor( 0 ), null,
+                        options );
+            } catch ( IllegalArgumentException e ) {
+                if ( options.inBitmap == null ) {
+                    throw e;
+                }
+                // The pooled bitmap didn't fit after all
+                options.inBitmap = null;
+                return BitmapFactory.decodeFileDescriptor( snapshot.getFileDescriptor( 0 ), null,
+                        options );
+            }
         }
 
+        // Without a pool the decoder buffers the stream itself
+        InputStream in = snapshot.getInputStream( 0 );
+        if ( in == null ) {
+            return null;
+        }
+        if ( pool != null ) {
+            // Thumbnails are small, keep the whole value to read it again after its bounds
+            in = new BufferedInputStream( in, FileUtils.IO_BUFFER_SIZE );
+            in.mark( (int) Math.min( snapshot.getLength( 0 ) + 1, Integer.MAX_VALUE ) );
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream( in, null, options );
+            options.inJustDecodeBounds = false;
+            in.reset();
+            pool.prepare( options );
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream( in, null, options );
+        } catch ( IllegalArgumentException e ) {
+            if ( options.inBitmap == null ) {
+                throw e;
+            }
+            options.inBitmap = null;
+            in.reset();
+            bitmap = BitmapFactory.decodeStream( in, null, options );
+        }
+        // A verified value is only checked once it is read to its end
+        drain( in );
         return bitmap;
+    }
 
+    /** Decodes an image held in {@code data}, into a free pooled bitmap if one fits. */
+    private Bitmap decode( byte[] data ) {
+        final BitmapPool pool = mBitmapPool;
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if ( pool != null ) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray( data, 0, data.length, options );
+            options.inJustDecodeBounds = false;
+            pool.prepare( options );
+        }
+        try {
+            return BitmapFactory.decodeByteArray( data, 0, data.length, options );
+        } catch ( IllegalArgumentException e ) {
+            if ( options.inBitmap == null ) {
+                throw e;
+            }
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray( data, 0, data.length, options );
+        }
     }
 
-    public boolean containsKey( String key ) {
+    /**
+     * Reads {@code key}'s image from the cold tier and, if it decodes, moves
+     * its compressed bytes to the hot tier as they are.
+     */
+    private Bitmap promote( String key ) {
+        final byte[] data = readBytes( mColdCache, key );
+        if ( data == null ) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final Bitmap bitmap = decode( data );
+        mStats.recordSince( CacheStats.Latency.DECODE, start );
+        if ( bitmap != null ) {
+            promote( key, data );
+        } else {
+            try {
+                mColdCache.remove( key );
+            } catch ( IOException e ) {
+                e.printStackTrace();
+            }
+        }
+        return bitmap;
+    }
 
-        boolean contained = false;
+    /** Moves {@code data}, {@code key}'s image read from the cold tier, to the hot tier. */
+    private void promote( String key, byte[] data ) {
+        DiskLruCache.Editor editor = null;
+        try {
+            editor = mDiskCache.edit( key );
+            if ( editor != null ) {
+                final OutputStream out = editor.newOutputStream( 0 );
+                out.write( data );
+                out.close();
+                editor.commit();
+                mStats.increment( CacheStats.Counter.PROMOTION );
+            }
+            // Promoted, or being replaced in the hot tier
+            mColdCache.remove( key );
+        } catch ( IOException e ) {
+            e.printStackTrace();
+            if ( editor != null ) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    /** Returns the compressed bytes of {@code key}'s image in {@code cache}, or null. */
+    private byte[] readBytes( DiskLruCache cache, String key ) {
         DiskLruCache.Snapshot snapshot = null;
         try {
-            snapshot = mDiskCache.get( key );
-            contained = snapshot != null;
-        } catch (IOException e) {
+            final long start = System.nanoTime();
+            snapshot = cache.get( key );
+            if ( snapshot == null ) {
+                return null;
+            }
+            final ByteArrayOutputStream bytes =
+                    new ByteArrayOutputStream( (int) snapshot.getLength( 0 ) );
+            final InputStream in = snapshot.getInputStream( 0 );
+            final byte[] buffer = new byte[FileUtils.IO_BUFFER_SIZE];
+            int count;
+            while ( ( count = in.read( buffer ) ) != -1 ) {
+                bytes.write( buffer, 0, count );
+            }
+            mStats.recordSince( CacheStats.Latency.DISK_READ, start );
+            return bytes.toByteArray();
+        } catch ( IOException e ) {
+            // Including a value that failed its checksum, which is removed by now
             e.printStackTrace();
+            return null;
         } finally {
             if ( snapshot != null ) {
                 snapshot.close();
             }
         }
+    }
+
+    private static void copy( InputStream in, DiskLruCache.Editor editor ) throws IOException {
+        final OutputStream out = editor.newOutputStream( 0 );
+        try {
+            final byte[] buffer = new byte[FileUtils.IO_BUFFER_SIZE];
+            int count;
+            while ( ( count = in.read( buffer ) ) != -1 ) {
+                out.write( buffer, 0, count );
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void drain( InputStream in ) throws IOException {
+        final byte[] buffer = new byte[FileUtils.IO_BUFFER_SIZE];
+        while ( in.read( buffer ) != -1 ) {
+            // Discard what the decoder left
+        }
+    }
 
-        return contained;
+    public boolean containsKey( String key ) {
+
+        if ( pendingBitmap( key ) != null ) {
+            return true;
+        }
+        // Not a read: no stats, journal records or promotion
+        return mDiskCache.contains( key ) || ( mColdCache != null && mColdCache.contains( key ) );
 
     }
 
@@ -162,13 +835,31 @@ public class DiskLruImageCache {
         if ( Constants.DEBUG ) {
             Log.d( "cache_test_DISK_", "disk cache CLEARED");
         }
+        synchronized ( mWriteLock ) {
+            if ( mPendingWrites != null ) {
+                for ( Bitmap pending : mPendingWrites.values() ) {
+                    unhold( pending );
+                }
+                mPendingWrites.clear();
+                mWriteLock.notifyAll();
+            }
+        }
         try {
-            mDiskCache.delete();
+            // Stays open, the old files are deleted in the background
+            mDiskCache.clear();
+            if ( mColdCache != null ) {
+                mColdCache.clear();
+            }
         } catch ( IOException e ) {
             e.printStackTrace();
         }
     }
 
+    /** Returns the hit, miss and timing statistics of this cache. */
+    public CacheStats getStats() {
+        return mStats;
+    }
+
     public File getCacheFolder() {
         return mDiskCache.getDirectory();
     }
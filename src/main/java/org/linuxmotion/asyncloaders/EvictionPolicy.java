@@ -0,0 +1,227 @@
+package org.linuxmotion.asyncloaders;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Chooses which entry a {@link DiskLruCache} segment evicts next. The
+ * segment tells the policy about every readable entry it adds, reads,
+ * resizes and drops, and the policy keeps its own queues of keys weighed by
+ * the entries' sizes in bytes.
+ *
+ * <p>Plain LRU doesn't need a policy, since the segment's access-ordered
+ * entry map already is one. Only recency survives reopening the cache: a
+ * policy starts over from the entries in access order. Policies aren't
+ * thread safe; the segment calls them under its lock.
+ */
+abstract class EvictionPolicy {
+  long maxSize;
+
+  static EvictionPolicy create(DiskLruCache.Eviction eviction, long maxSize,
+      FrequencySketch sketch) {
+    EvictionPolicy policy;
+    switch (eviction) {
+      case SLRU:
+        policy = new Slru();
+        break;
+      case TINY_LFU:
+        policy = new TinyLfu(sketch);
+        break;
+      default:
+        return null;
+    }
+    policy.maxSize = maxSize;
+    return policy;
+  }
+
+  void setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+  }
+
+  /** Adds a new entry of {@code weight} bytes. */
+  abstract void add(String key, long weight);
+
+  /** Records a read or a rewrite of the entry for {@code key}. */
+  abstract void access(String key);
+
+  /** Records that the entry for {@code key} now weighs {@code weight} bytes. */
+  abstract void resize(String key, long weight);
+
+  abstract void remove(String key);
+
+  /**
+   * Returns the key of the entry to evict next, or null if there are no
+   * entries. The caller evicts it and reports it with {@link #remove}.
+   */
+  abstract String victim();
+
+  /** Keys in least- to most-recently used order, with their weights. */
+  static final class Queue {
+    private final LinkedHashMap<String, Long> weights = new LinkedHashMap<String, Long>();
+    long size;
+
+    void add(String key, long weight) {
+      weights.put(key, weight);
+      size += weight;
+    }
+
+    /** Returns the weight of the removed key, or null if it wasn't queued. */
+    Long remove(String key) {
+      Long weight = weights.remove(key);
+      if (weight != null) {
+        size -= weight;
+      }
+      return weight;
+    }
+
+    boolean contains(String key) {
+      return weights.containsKey(key);
+    }
+
+    boolean resize(String key, long weight) {
+      Long old = weights.get(key);
+      if (old == null) {
+        return false;
+      }
+      weights.put(key, weight); // Replacing a value keeps the key's position.
+      size += weight - old;
+      return true;
+    }
+
+    void moveToTail(String key) {
+      Long weight = weights.remove(key);
+      if (weight != null) {
+        weights.put(key, weight);
+      }
+    }
+
+    String head() {
+      Iterator<String> keys = weights.keySet().iterator();
+      return keys.hasNext() ? keys.next() : null;
+    }
+
+    int count() {
+      return weights.size();
+    }
+  }
+
+  /**
+   * Segmented LRU. New entries go on probation and are promoted to the
+   * protected queue when read again. Victims come from probation first, so
+   * entries that were used once can't push out ones that are used
+   * repeatedly.
+   */
+  static class Slru extends EvictionPolicy {
+    /** The protected queue's share of the maximum size. */
+    static final float PROTECTED_RATIO = 0.8f;
+
+    final Queue probation = new Queue();
+    final Queue protectedQueue = new Queue();
+
+    @Override void add(String key, long weight) {
+      probation.add(key, weight);
+    }
+
+    @Override void access(String key) {
+      Long weight = probation.remove(key);
+      if (weight != null) {
+        protectedQueue.add(key, weight);
+        demote();
+      } else {
+        protectedQueue.moveToTail(key);
+      }
+    }
+
+    @Override void resize(String key, long weight) {
+      if (protectedQueue.resize(key, weight)) {
+        demote();
+      } else {
+        probation.resize(key, weight);
+      }
+    }
+
+    @Override void remove(String key) {
+      if (probation.remove(key) == null) {
+        protectedQueue.remove(key);
+      }
+    }
+
+    @Override String victim() {
+      String victim = probation.head();
+      return victim != null ? victim : protectedQueue.head();
+    }
+
+    /** Moves the protected queue's oldest entries back to probation while it is too big. */
+    private void demote() {
+      while (protectedQueue.size > maxSize * PROTECTED_RATIO && protectedQueue.count() > 1) {
+        String key = protectedQueue.head();
+        probation.add(key, protectedQueue.remove(key));
+      }
+    }
+  }
+
+  /**
+   * Window TinyLFU. New entries spend a short time in a small LRU window
+   * and then go on probation in a segmented LRU. An entry that just left
+   * the window only stays if it has been requested more often than the
+   * entry it would displace, according to the segment's frequency sketch.
+   */
+  static final class TinyLfu extends Slru {
+    /** The window's share of the maximum size. */
+    static final float WINDOW_RATIO = 0.01f;
+
+    private final Queue window = new Queue();
+    private final FrequencySketch sketch;
+    /** The entry that most recently left the window, until it's judged. */
+    private String candidate;
+
+    TinyLfu(FrequencySketch sketch) {
+      this.sketch = sketch;
+    }
+
+    @Override void add(String key, long weight) {
+      window.add(key, weight);
+      while (window.size > maxSize * WINDOW_RATIO && window.count() > 1) {
+        String oldest = window.head();
+        super.add(oldest, window.remove(oldest));
+        candidate = oldest;
+      }
+    }
+
+    @Override void access(String key) {
+      if (window.contains(key)) {
+        window.moveToTail(key);
+      } else {
+        super.access(key);
+      }
+    }
+
+    @Override void resize(String key, long weight) {
+      if (!window.resize(key, weight)) {
+        super.resize(key, weight);
+      }
+    }
+
+    @Override void remove(String key) {
+      if (window.remove(key) == null) {
+        super.remove(key);
+      }
+      if (key.equals(candidate)) {
+        candidate = null;
+      }
+    }
+
+    @Override String victim() {
+      String victim = super.victim();
+      if (victim == null) {
+        return window.head();
+      }
+      if (candidate != null && !candidate.equals(victim) && probation.contains(candidate)) {
+        String challenger = candidate;
+        candidate = null;
+        return sketch.frequency(challenger) > sketch.frequency(victim) ? victim : challenger;
+      }
+      return victim;
+    }
+  }
+}
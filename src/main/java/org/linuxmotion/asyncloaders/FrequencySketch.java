@@ -0,0 +1,75 @@
+package org.linuxmotion.asyncloaders;
+
+/**
+ * Estimates how often each key has been requested recently, for {@link
+ * DiskLruCache}'s frequency based eviction and admission.
+ *
+ * <p>This is a count-min sketch: a key maps to one counter in each of four
+ * rows, and its estimate is the smallest of those counters. Counters
+ * saturate at {@link #MAX_FREQUENCY}. Once the number of increments reaches
+ * ten times the width of a row every counter is halved, so that keys that
+ * were popular a long time ago fade out.
+ *
+ * <p>Not thread safe; the owning segment calls it under its lock.
+ */
+final class FrequencySketch {
+  static final int MAX_FREQUENCY = 15;
+
+  private static final int ROWS = 4;
+  private static final int[] SEEDS = {0x97cb3127, 0xb28ffd2d, 0x4d5ae1c3, 0x6c8e9cf5};
+
+  private final byte[] counters;
+  private final int width;
+  private final int sampleSize;
+  private int additions;
+
+  /** Creates a sketch sized for about {@code expectedKeys} distinct keys. */
+  FrequencySketch(int expectedKeys) {
+    int width = 64;
+    while (width < expectedKeys && width < (1 << 20)) {
+      width <<= 1;
+    }
+    this.width = width;
+    this.counters = new byte[ROWS * width];
+    this.sampleSize = 10 * width;
+  }
+
+  /** Records a request for {@code key}. */
+  void increment(String key) {
+    int hash = key.hashCode();
+    boolean added = false;
+    for (int row = 0; row < ROWS; row++) {
+      int i = index(hash, row);
+      if (counters[i] < MAX_FREQUENCY) {
+        counters[i]++;
+        added = true;
+      }
+    }
+    if (added && ++additions >= sampleSize) {
+      reset();
+    }
+  }
+
+  /** Returns the estimated number of recent requests for {@code key}. */
+  int frequency(String key) {
+    int hash = key.hashCode();
+    int frequency = MAX_FREQUENCY;
+    for (int row = 0; row < ROWS; row++) {
+      frequency = Math.min(frequency, counters[index(hash, row)]);
+    }
+    return frequency;
+  }
+
+  private int index(int hash, int row) {
+    int h = (hash + SEEDS[row]) * SEEDS[row];
+    h ^= h >>> 17;
+    return row * width + (h & (width - 1));
+  }
+
+  private void reset() {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] >>= 1;
+    }
+    additions /= 2;
+  }
+}
@@ -1,6 +1,9 @@
 package org.linuxmotion.asyncloaders;
 
-import java.util.concurrent.RejectedExecutionException;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 
 
 import android.app.ActivityManager;
@@ -9,8 +12,7 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-//import android.support.v4.util.LruCache;
-import android.util.LruCache;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 
 
@@ -18,13 +20,40 @@ public class ImageLoader {
     private static final String TAG = ImageLoader.class.getSimpleName();
     private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
     private static final String DISK_CACHE_SUBDIR = "thumbnails";
+    // The sizes images are decoded at, in pixels along their shorter side, smallest first
+    static final int[] SIZE_BUCKETS = {64, 128, 256, 512, 1024};
+    /** The size of views that are neither laid out nor given a size by their layout. */
+    public static final int DEFAULT_SIZE = 64;
     private Bitmap mLoadingMap;
-    private LruCache<String, Bitmap> mMemoryCache;
-    private DiskLruImageCache mDiskCache;
+    // Read without a lock, so the UI thread never waits on a loader thread
+    private StripedLruCache<String, Bitmap> mMemoryCache;
+    // Takes the bitmaps the memory cache and the views let go of; null without the caches
+    private BitmapPool mBitmapPool;
+    // The loader's bitmap each view shows, used on the UI thread only
+    private final WeakHashMap<ImageView, Bitmap> mShown = new WeakHashMap<ImageView, Bitmap>();
+    // Null until it has been opened in the background
+    private volatile DiskLruImageCache mDiskCache;
+    private final CountDownLatch mDiskCacheOpened = new CountDownLatch(1);
+    private volatile BeforeDiskReady mBeforeDiskReady = BeforeDiskReady.SKIP_DISK;
+    private final CacheStats mStats = new CacheStats();
     private int mMemClass = 0;
-    private boolean mUseCache = true;
+    private volatile boolean mUseCache = true;
     private Context mContext;
     private boolean mTaksHeld = false;
+    private LoaderEngine mEngine = LoaderEngine.getDefault();
+    // The unfinished load of each cache key, so that views showing the same image share it
+    private final HashMap<String, ImageLoaderTask> mInFlight = new HashMap<String, ImageLoaderTask>();
+
+    /**
+     * What loads do while the disk cache is still being opened in the
+     * background. Either way the memory cache is used from the start.
+     */
+    public enum BeforeDiskReady {
+        /** Loads decode their images and don't store them on disk. */
+        SKIP_DISK,
+        /** Loads wait on their loader threads until the disk cache is open. */
+        QUEUE
+    }
 
 
     /**
@@ -106,30 +135,50 @@ public class ImageLoader {
         }
     }
 
-    private static boolean cancelPotentialDecoding(String abspath, ImageView imageView) {
+    /**
+     * Creates a loader whose disk cache, in the {@code diskCacheName}
+     * subdirectory, takes its share of {@code diskBudget}. Loaders that share
+     * a budget also share one disk maintenance thread.
+     *
+     * @param context
+     * @param loading
+     * @param cacheSize
+     * @param diskBudget
+     * @param diskCacheName
+     */
+    public ImageLoader(Context context, Bitmap loading, int cacheSize,
+                       final DiskBudgetManager diskBudget, final String diskCacheName) {
+        mContext = context;
+        mLoadingMap = loading;
+        mUseCache = true;
+        mMemClass = cacheSize;
+        initMemCache(true, cacheSize);
+        openDiskCache(new Callable<DiskLruImageCache>() {
+            public DiskLruImageCache call() {
+                return new DiskLruImageCache(mContext, diskCacheName, diskBudget,
+                        CompressFormat.JPEG, 50, mStats);
+            }
+        });
+    }
+
+    private static boolean cancelPotentialDecoding(String key, ImageView imageView) {
         ImageLoaderTask bitmapDownloaderTask = getImageLoaderTask(imageView);
 
 
         if (bitmapDownloaderTask != null) {
 
-            String bitmapPath = bitmapDownloaderTask.getKey();
-            String retHash = null;
-            if (bitmapPath != null) retHash = AeSimpleSHA1.SHA1(bitmapPath);
-            String absHash = AeSimpleSHA1.SHA1(abspath);
-
+            String taskKey = bitmapDownloaderTask.getKey();
+            LogWrapper.Logi(TAG, "The view is waiting for image key: " + taskKey);
 
-            LogWrapper.Logi(TAG, "The Sha1 has of the path: " + bitmapPath + " is hash: " + retHash);
+            // Leave the task if the view is being reused, which cancels it once no view waits for it
+            if (taskKey != null && !taskKey.equals(key)) {
+                bitmapDownloaderTask.detach(imageView);
 
-            // Cancel the task if the view is being reused
-            if ((retHash != null) && (absHash != null) && (retHash != absHash)) {
-                LogWrapper.Logi(TAG, "Prevoius task for image key: " +
-                        retHash + " was cancelled = " +
-                        bitmapDownloaderTask.cancel(true));
-
-            } else {
+            } else if (!bitmapDownloaderTask.isCancelled()) {
                 // The same URL is already being downloaded.
                 return false;
             }
+            // Otherwise a full stage dropped the load, start it again
         }
         return true;
     }
@@ -145,40 +194,192 @@ public class ImageLoader {
         return null;
     }
 
+    /**
+     * Shows the image at {@code abspath} in {@code imageView}, at the size
+     * bucket of the view's size, or of the size its layout gives it if it
+     * hasn't been laid out yet.
+     */
     public void setImage(String abspath, ImageView imageView) {
+        setImage(abspath, imageView, targetSize(imageView));
+    }
+
+    /**
+     * Shows the image at {@code abspath} in {@code imageView}, decoded so
+     * that its shorter side is the size bucket {@code size} pixels round up
+     * to. Each bucket is cached separately; a missing one is scaled down from
+     * a larger cached one where there is one.
+     */
+    public void setImage(String abspath, ImageView imageView, int size) {
 
         if (abspath == null) {
             throw new NullPointerException("The path for the image view is null");
         }
 
+        final String hash = AeSimpleSHA1.SHA1(abspath);
+        final int bucket = sizeBucket(size);
+        final String key = cacheKey(hash, bucket);
         //if (!mTaksHeld && cancelPotentialDecoding(abspath, imageView)) {
         if (mUseCache) {
 
-            Bitmap bmap = getBitmapFromMemCache(AeSimpleSHA1.SHA1(abspath));
+            Bitmap bmap = getBitmapFromMemCache(key);
             if (bmap != null) {
 
+                final ImageLoaderTask previous = getImageLoaderTask(imageView);
+                if (previous != null) {
+                    previous.detach(imageView);
+                }
+                setShown(imageView, bmap);
                 imageView.setImageBitmap(bmap);
+                // The view holds it now
+                releaseBitmap(bmap);
                 return;
             }
         }
-        if (cancelPotentialDecoding(abspath, imageView)) {
-            ImageLoaderTask task = new ImageLoaderTask(this, imageView);
-            AsyncDrawable downloadedDrawable = new AsyncDrawable(mContext.getResources(), mLoadingMap, task);
-            imageView.setImageDrawable(downloadedDrawable);
-            try {
-                task.execute(abspath);
-            } catch (RejectedExecutionException e) {
-                //e.printStackTrace();
-                // Is the cancel function having a fall through
+        if (cancelPotentialDecoding(key, imageView)) {
+            synchronized (mInFlight) {
+                ImageLoaderTask task = mInFlight.get(key);
+                final boolean attached = task != null && task.attach(imageView);
+                if (!attached) {
+                    task = new ImageLoaderTask(this, imageView, mEngine);
+                    mInFlight.put(key, task);
+                }
+                AsyncDrawable downloadedDrawable = new AsyncDrawable(mContext.getResources(), mLoadingMap, task);
+                setShown(imageView, null);
+                imageView.setImageDrawable(downloadedDrawable);
+                if (!attached) {
+                    // Queued on the engine's stages, which drop their oldest loads when full
+                    task.execute(abspath, bucket, holdLargerVariant(hash, bucket));
+                }
+            }
+        }
+
+
+    }
+
+    /**
+     * Returns the smallest variant of the image larger than {@code bucket} in
+     * the memory cache, held for the caller, or null. On the UI thread, where
+     * the memory cache releases the bitmaps it evicts.
+     */
+    private Bitmap holdLargerVariant(String hash, int bucket) {
+        if (!mUseCache) {
+            return null;
+        }
+        for (int size : SIZE_BUCKETS) {
+            if (size > bucket) {
+                final Bitmap larger = mMemoryCache.get(cacheKey(hash, size));
+                if (larger != null) {
+                    mBitmapPool.acquire(larger);
+                    return larger;
+                }
             }
         }
+        return null;
+    }
 
+    /**
+     * @return The size {@code imageView} shows images at: its size within its
+     * padding once it is laid out, else the size its layout params ask for,
+     * else {@link #DEFAULT_SIZE}
+     */
+    static int targetSize(ImageView imageView) {
+        int width = imageView.getWidth() - imageView.getPaddingLeft() - imageView.getPaddingRight();
+        int height = imageView.getHeight() - imageView.getPaddingTop() - imageView.getPaddingBottom();
+        final ViewGroup.LayoutParams params = imageView.getLayoutParams();
+        if (params != null) {
+            // Wrapping or matching the parent are negative
+            if (width <= 0) {
+                width = params.width;
+            }
+            if (height <= 0) {
+                height = params.height;
+            }
+        }
+        final int size = Math.max(width, height);
+        return size > 0 ? size : DEFAULT_SIZE;
+    }
 
+    /**
+     * @return The smallest size bucket of at least {@code size} pixels, or the
+     * largest bucket if {@code size} is larger
+     */
+    static int sizeBucket(int size) {
+        for (int bucket : SIZE_BUCKETS) {
+            if (bucket >= size) {
+                return bucket;
+            }
+        }
+        return SIZE_BUCKETS[SIZE_BUCKETS.length - 1];
     }
 
-    private void initDiskCache(Context context, int cacheSize) {
-        mDiskCache = new DiskLruImageCache(context, DISK_CACHE_SUBDIR, cacheSize, CompressFormat.JPEG, 50);
+    /** Returns the cache key of the {@code bucket} variant of the image whose path hashes to {@code hash}. */
+    static String cacheKey(String hash, int bucket) {
+        return hash + "_" + bucket;
+    }
+
+    private void initDiskCache(final Context context, final int cacheSize) {
+        openDiskCache(new Callable<DiskLruImageCache>() {
+            public DiskLruImageCache call() {
+                // A quarter of the budget on fast internal storage, the rest on external storage
+                final int hotCacheSize = cacheSize / 4;
+                return new DiskLruImageCache(context, DISK_CACHE_SUBDIR, hotCacheSize,
+                        cacheSize - hotCacheSize, CompressFormat.JPEG, 50, mStats);
+            }
+        });
+    }
+
+    /**
+     * Opens the disk cache on a background thread, so that reading its
+     * journal doesn't hold up the constructor's caller. Until it is open,
+     * loads go by {@link #setBeforeDiskReady}.
+     */
+    private void openDiskCache(final Callable<DiskLruImageCache> opener) {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    final DiskLruImageCache diskCache = opener.call();
+                    diskCache.setBitmapPool(mBitmapPool);
+                    // Loader threads hand bitmaps to the writer instead of compressing them
+                    diskCache.startWriteBehind( 32, DiskLruImageCache.Backpressure.COALESCE );
+                    mDiskCache = diskCache;
+                } catch (Exception e) {
+                    LogWrapper.Loge(TAG, "Could not open the disk cache, using memory only");
+                } finally {
+                    mDiskCacheOpened.countDown();
+                }
+            }
+        }, TAG + " disk open");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    /**
+     * Sets what loads do while the disk cache is still being opened. The
+     * default is {@link BeforeDiskReady#SKIP_DISK}.
+     */
+    public void setBeforeDiskReady(BeforeDiskReady beforeDiskReady) {
+        mBeforeDiskReady = beforeDiskReady;
+    }
+
+    /** Returns true once the disk cache is open, or failed to open. */
+    public boolean isDiskCacheReady() {
+        return mDiskCacheOpened.getCount() == 0;
+    }
 
+    /**
+     * Returns the disk cache, waiting for it to be opened if loads are
+     * queued until then, or null if loads skip it or it failed to open.
+     * Never called on the UI thread nor with the loader's lock held.
+     */
+    private DiskLruImageCache diskCache() {
+        if (mDiskCache == null && mBeforeDiskReady == BeforeDiskReady.QUEUE) {
+            try {
+                mDiskCacheOpened.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return mDiskCache;
     }
 
     /**
@@ -201,11 +402,24 @@ public class ImageLoader {
         }
 
 
-        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+        // Up to a quarter as many bytes again of bitmaps waiting to be decoded into
+        mBitmapPool = new BitmapPool(cacheSize / 4);
+        mMemoryCache = new StripedLruCache<String, Bitmap>(cacheSize) {
             @Override
-            protected int sizeOf(String key, Bitmap bitmap) {
+            protected long sizeOf(String key, Bitmap bitmap) {
                 // The cache size will be measured in bytes rather than number of items.
-                return bitmap.getRowBytes() * bitmap.getHeight();// int result permits bitmaps up to 46,340 x 46,340
+                return (long) bitmap.getRowBytes() * bitmap.getHeight();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, final Bitmap oldValue,
+                                        Bitmap newValue) {
+                // On the UI thread, after any lookup that found it has shown it
+                mEngine.postToMain(new Runnable() {
+                    public void run() {
+                        mBitmapPool.release(oldValue);
+                    }
+                });
             }
         };
 
@@ -217,12 +431,15 @@ public class ImageLoader {
      * @param bitmap The bitmap to store
      * @return True if the bitmap was added succesfully
      */
-    public synchronized boolean addBitmapToMemoryCache(String key, Bitmap bitmap) {
-        if (mUseCache && getBitmapFromMemCache(key) == null) {
+    public boolean addBitmapToMemoryCache(String key, Bitmap bitmap) {
+        if (!mUseCache) return false;
+        // Held before it is in the cache, where it can be evicted at once
+        mBitmapPool.acquire(bitmap);
+        if (mMemoryCache.putIfAbsent(key, bitmap) == null) {
             LogWrapper.Logv(TAG, "Setting mem cache file for bitmap " + key);
-            mMemoryCache.put(key, bitmap);
             return true;
         }
+        mBitmapPool.release(bitmap);
         return false;
     }
 
@@ -231,32 +448,162 @@ public class ImageLoader {
      * @param bitmap The bitmap to store
      * @return True if the bitmap was added successfully
      */
-    public synchronized boolean addBitmapToDiskCache(String key, Bitmap bitmap) {
-        if (mUseCache && getBitmapFromDiskCache(key) == null) {
+    public boolean addBitmapToDiskCache(String key, Bitmap bitmap) {
+        if (!mUseCache) return false;
+        final DiskLruImageCache diskCache = diskCache();
+        // Checking for the entry is enough, decoding it again would skew the timings
+        if (diskCache != null && !diskCache.containsKey(key)) {
             LogWrapper.Logv(TAG, "Setting disk cache file for bitmap " + key);
-            mDiskCache.put(key, bitmap);
+            diskCache.put(key, bitmap);
             return true;
         }
         return false;
     }
 
-    public synchronized Bitmap getBitmapFromMemCache(String key) {
+    /**
+     * @return The image of {@code key} from the memory cache or null. It is
+     * held in the {@link #getBitmapPool bitmap pool} until the caller releases
+     * it; until then it is neither decoded into nor recycled, even once it is
+     * evicted. On the UI thread, where the memory cache releases the bitmaps
+     * it evicts.
+     */
+    public Bitmap getBitmapFromMemCache(String key) {
 
         if (key == null) return null;
-        Bitmap b = mUseCache ? mMemoryCache.get(key) : null;
-        if (b != null)
+        if (!mUseCache) return null;
+        Bitmap b = mMemoryCache.get(key);
+        mStats.increment(b != null ? CacheStats.Counter.MEMORY_HIT : CacheStats.Counter.MEMORY_MISS);
+        if (b != null) {
             LogWrapper.Logv(TAG, "Retrived mem cached bitmap for " + key);
+            mBitmapPool.acquire(b);
+        }
         return b;
     }
 
-    public synchronized Bitmap getBitmapFromDiskCache(String key) {
-        if (key == null) return null;
-        Bitmap b = mUseCache ? mDiskCache.getBitmap(key) : null;
+    /**
+     * @return The image of {@code key} from the disk cache or null. It is held
+     * in the {@link #getBitmapPool bitmap pool} until the caller releases it.
+     */
+    public Bitmap getBitmapFromDiskCache(String key) {
+        if (key == null || !mUseCache) return null;
+        final DiskLruImageCache diskCache = diskCache();
+        Bitmap b = diskCache != null ? diskCache.getBitmap(key) : null;
         if (b != null)
             LogWrapper.Logv(TAG, "Retrived disk cached bitmap for " + key);
         return b;
     }
 
+    /**
+     * @return The image of {@code key} read from the disk cache but not
+     * decoded, or null. Decode it with {@link #decodeFromDiskCache} or let go
+     * of it with {@link #releaseFromDiskCache}.
+     */
+    DiskLruImageCache.EncodedImage readFromDiskCache(String key) {
+        if (key == null || !mUseCache) return null;
+        final DiskLruImageCache diskCache = diskCache();
+        return diskCache != null ? diskCache.readImage(key) : null;
+    }
+
+    /**
+     * @return The image read by {@link #readFromDiskCache}, decoded, or null.
+     * It is held in the {@link #getBitmapPool bitmap pool} until the caller
+     * releases it.
+     */
+    Bitmap decodeFromDiskCache(DiskLruImageCache.EncodedImage image) {
+        return diskCache().decodeImage(image);
+    }
+
+    void releaseFromDiskCache(DiskLruImageCache.EncodedImage image) {
+        diskCache().releaseImage(image);
+    }
+
+    /**
+     * @return The pool that decodes reuse the bitmaps of, or null if the loader
+     * doesn't cache
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    void holdBitmap(Bitmap bitmap) {
+        if (mBitmapPool != null) {
+            mBitmapPool.acquire(bitmap);
+        }
+    }
+
+    void releaseBitmap(Bitmap bitmap) {
+        if (mBitmapPool != null) {
+            mBitmapPool.release(bitmap);
+        }
+    }
+
+    /**
+     * Records that {@code imageView} shows {@code bitmap}, or none of the
+     * loader's bitmaps if it is null, so that the bitmap it showed before can
+     * be reused once nothing else holds it. On the UI thread.
+     */
+    void setShown(ImageView imageView, Bitmap bitmap) {
+        if (mBitmapPool == null) {
+            return;
+        }
+        final Bitmap previous = bitmap != null ? mShown.put(imageView, bitmap) : mShown.remove(imageView);
+        if (bitmap != null) {
+            mBitmapPool.acquire(bitmap);
+        }
+        if (previous != null) {
+            mBitmapPool.release(previous);
+        }
+    }
+
+    /**
+     * @return The memory and disk cache hits, misses, puts, evictions and
+     * timings recorded so far, to size the caches by
+     */
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Called when {@code task} finishes or is cancelled, after which requests
+     * for {@code key} no longer attach to it.
+     */
+    void loadFinished(String key, ImageLoaderTask task) {
+        synchronized (mInFlight) {
+            if (mInFlight.get(key) == task) {
+                mInFlight.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Writes the images still queued for the disk cache and closes it,
+     * ending its writer thread; the loader goes on with its memory cache
+     * only. Waits for the disk cache to open and for the writes, so not on
+     * the UI thread. Without it, images still queued when the process ends
+     * are never written.
+     */
+    public void close() {
+        try {
+            mDiskCacheOpened.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        final DiskLruImageCache diskCache = mDiskCache;
+        mDiskCache = null;
+        if (diskCache != null) {
+            diskCache.close();
+        }
+    }
+
+    /**
+     * Runs this loader's loads on {@code engine} rather than on the engine
+     * shared by every loader, such as to give them threads of their own.
+     */
+    public void setLoaderEngine(LoaderEngine engine) {
+        mEngine = engine;
+    }
+
     public void holdTaskLoader() {
         mTaksHeld = true;
 
@@ -1,89 +1,409 @@
 package org.linuxmotion.asyncloaders;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 
 
 import android.graphics.Bitmap;
-import android.os.AsyncTask;
 import android.widget.ImageView;
 
-public class ImageLoaderTask extends AsyncTask<String, Void, Bitmap> {
+/**
+ * Loads one image, moving through the stages of a {@link LoaderEngine}: the
+ * disk cache is read on the I/O stage, what it had or, on a miss, the
+ * original is decoded on the CPU stage and the decoded image is stored on the
+ * write stage while it is already being shown.
+ *
+ * A load can have several target views: requests for an image that is already
+ * being loaded {@link #attach} to its task, and every target still showing
+ * the task gets the same bitmap. The load is only cancelled once all of its
+ * targets have been {@link #detach detached} or collected.
+ */
+public class ImageLoaderTask {
 
     private static final String TAG = ImageLoaderTask.class.getSimpleName();
-    private final WeakReference<ImageView> imageViewReference;
-    private String mKey;
+    // The views waiting for the image, guarded by this
+    private final ArrayList<WeakReference<ImageView>> mTargets =
+            new ArrayList<WeakReference<ImageView>>();
+    private boolean mFinished;
+    private volatile String mKey;
     private String mPath;
+    // The hash of the path, which the keys of its size variants start with
+    private String mHash;
+    // The size bucket the image is decoded at
+    private int mSize;
+    // A held, larger variant of the image to scale down instead of decoding it
+    private Bitmap mLarger;
+    // The image read from the disk cache for the CPU stage to decode
+    private DiskLruImageCache.EncodedImage mEncoded;
+    // Whether mEncoded is a larger variant, to be scaled down once decoded
+    private boolean mEncodedLarger;
     private ImageLoader mLoader;
+    private final LoaderEngine mEngine;
+    private volatile boolean mCancelled;
+    private boolean mExecuted;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile Bitmap mResult;
 
     public ImageLoaderTask(ImageLoader loader, ImageView imageView) {
+        this(loader, imageView, LoaderEngine.getDefault());
+    }
+
+    public ImageLoaderTask(ImageLoader loader, ImageView imageView, LoaderEngine engine) {
         mLoader = loader;
-        imageViewReference = new WeakReference<ImageView>(imageView);
+        mEngine = engine;
+        mTargets.add(new WeakReference<ImageView>(imageView));
 
     }
 
-    @Override
-    // Actual download method, run in the task thread
-    protected Bitmap doInBackground(String... params) {
-        // params comes from the execute() call: params[0] is the url.
-        if (params.length == 0) {
+    /**
+     * Adds {@code imageView} to the views that get the image once it is
+     * loaded.
+     *
+     * @return False if the load has already finished or was cancelled, and
+     * a new one is needed
+     */
+    public synchronized boolean attach(ImageView imageView) {
+        if (mFinished || mCancelled) {
+            return false;
+        }
+        mTargets.add(new WeakReference<ImageView>(imageView));
+        return true;
+    }
 
-            return null;
+    /**
+     * Removes {@code imageView} from the views waiting for the image, such as
+     * when it was reused for another one. Cancels the load if no view is left.
+     */
+    public void detach(ImageView imageView) {
+        final boolean abandoned;
+        synchronized (this) {
+            final Iterator<WeakReference<ImageView>> i = mTargets.iterator();
+            while (i.hasNext()) {
+                final ImageView target = i.next().get();
+                if (target == null || target == imageView) {
+                    i.remove();
+                }
+            }
+            abandoned = mTargets.isEmpty();
         }
-        mPath = params[0];
-        mKey = AeSimpleSHA1.SHA1(mPath);
-        //String f = new File(params[0]).getName();
+        // Outside the lock, the loader locks its in-flight table and then tasks
+        if (abandoned) {
+            LogWrapper.Logi(TAG, "Previous task for image key: " + mKey + " was cancelled = "
+                    + cancel(true));
+        }
+    }
 
-        //String hash = String.valueOf((new File(f)).hashCode());
+    /**
+     * Queues the load of the image at {@code path} at the {@link
+     * ImageLoader#DEFAULT_SIZE default size}. A task can only be executed
+     * once.
+     */
+    public void execute(String path) {
+        execute(path, ImageLoader.DEFAULT_SIZE);
+    }
+
+    /**
+     * Queues the load of the image at {@code path} for a view of {@code size}
+     * pixels, which is rounded up to a {@link ImageLoader#sizeBucket size
+     * bucket}. A task can only be executed once.
+     */
+    public void execute(String path, int size) {
+        execute(path, size, null);
+    }
 
-        if (isCancelled()) return null;
+    /**
+     * Like {@link #execute(String, int)}, scaling {@code larger}, a larger
+     * variant of the image held for this task, down instead of loading the
+     * image if it isn't null.
+     */
+    synchronized void execute(String path, int size, Bitmap larger) {
+        if (mExecuted) {
+            throw new IllegalStateException("The task has already been executed");
+        }
+        mExecuted = true;
+        mPath = path;
+        mHash = AeSimpleSHA1.SHA1(mPath);
+        mSize = ImageLoader.sizeBucket(size);
+        mKey = ImageLoader.cacheKey(mHash, mSize);
+        if (larger != null) {
+            mLarger = larger;
+            mEngine.cpu.execute(mScale);
+        } else {
+            mEngine.io.execute(mReadDisk);
+        }
+    }
+
+    /**
+     * A stage of this load. If a full stage drops it, the load is cancelled,
+     * and running it then only lets go of what it holds and finishes.
+     */
+    private abstract class Step implements LoaderEngine.Droppable {
+        public void drop() {
+            cancel(false);
+            run();
+        }
+    }
+
+    // Runs on the I/O stage, leaving the decode to the CPU stage
+    private final Runnable mReadDisk = new Step() {
+        public void run() {
+            if (mCancelled) {
+                finish(null);
+                return;
+            }
+            final DiskLruImageCache.EncodedImage image;
+            try {
+                image = readDisk();
+            } catch (RuntimeException e) {
+                finish(null);
+                throw e;
+            }
+            if (image != null && mCancelled) {
+                mLoader.releaseFromDiskCache(image);
+                finish(null);
+            } else if (image != null) {
+                mEncoded = image;
+                mEngine.cpu.execute(mDecodeDisk);
+            } else {
+                // No cached bitmap found
+                mEngine.cpu.execute(mDecode);
+            }
+        }
+    };
+
+    /**
+     * Reads the image at this task's size from the disk cache or, failing
+     * that, its smallest larger variant, or returns null.
+     */
+    private DiskLruImageCache.EncodedImage readDisk() {
+        mEncodedLarger = false;
+        final DiskLruImageCache.EncodedImage image = mLoader.readFromDiskCache(mKey);
+        if (image != null) {
+            return image;
+        }
+        for (int size : ImageLoader.SIZE_BUCKETS) {
+            if (size > mSize && !mCancelled) {
+                final DiskLruImageCache.EncodedImage larger =
+                        mLoader.readFromDiskCache(ImageLoader.cacheKey(mHash, size));
+                if (larger != null) {
+                    mEncodedLarger = true;
+                    return larger;
+                }
+            }
+        }
+        return null;
+    }
 
-        try {
-            if (isCancelled()) return null;
-            Bitmap bitmap = mLoader.getBitmapFromDiskCache(mKey);
-            if (bitmap != null)
+    // Runs on the CPU stage
+    private final Runnable mDecodeDisk = new Step() {
+        public void run() {
+            final DiskLruImageCache.EncodedImage image = mEncoded;
+            mEncoded = null;
+            if (mCancelled) {
+                mLoader.releaseFromDiskCache(image);
+                finish(null);
+                return;
+            }
+            Bitmap bitmap = null;
+            try {
+                // Held for this task until it is shown
+                bitmap = mLoader.decodeFromDiskCache(image);
+            } catch (OutOfMemoryError e) {
+                LogWrapper.Loge(TAG, "Failed to decode the cached bitmap due to Out of Memory Error");
+            }
+            if (bitmap == null) {
+                // Undecodable, it was dropped from the disk cache
+                mDecode.run();
+            } else if (mEncodedLarger) {
+                // Scaling a cached variant down is cheaper than decoding the original
+                mLarger = bitmap;
+                mScale.run();
+            } else if (mCancelled) {
+                // It is still on disk, reuse its memory instead of caching it
+                mLoader.releaseBitmap(bitmap);
+                finish(null);
+            } else {
                 LogWrapper.Logv(TAG, "Using disk cached bitmap for image = " + mKey);
-            // No cached bitmap found
-            if (bitmap == null) bitmap = BitmapHelper.decodeSampledBitmapFromImage(mPath, 50, 50);
-            if (bitmap != null) {// Add bitmap to cache if bitmap was decoded
+                mLoader.addBitmapToMemoryCache(mKey, bitmap);
+                finish(bitmap);
+            }
+        }
+    };
 
-                LogWrapper.Logi(TAG, "[Bitmap Height = " + bitmap.getHeight() + "]");
-                LogWrapper.Logi(TAG, "[Bitmap Width = " + bitmap.getWidth() + "]");
-                mLoader.addBitmapToDiskCache(mKey, bitmap);
+    // Runs on the CPU stage
+    private final Runnable mScale = new Step() {
+        public void run() {
+            final Bitmap larger = mLarger;
+            mLarger = null;
+            if (mCancelled) {
+                mLoader.releaseBitmap(larger);
+                finish(null);
+                return;
+            }
+            Bitmap bitmap = null;
+            try {
+                bitmap = BitmapHelper.scaleDown(larger, mSize);
+            } catch (OutOfMemoryError e) {
+                LogWrapper.Loge(TAG, "Failed to scale the bitmap due to Out of Memory Error");
+            } finally {
+                decoded(bitmap);
+                // After, in case it was small enough to be the result as it is
+                mLoader.releaseBitmap(larger);
+            }
+        }
+    };
+
+    // Runs on the CPU stage
+    private final Runnable mDecode = new Step() {
+        public void run() {
+            if (mCancelled) {
+                finish(null);
+                return;
+            }
+            Bitmap bitmap = null;
+            try {
+                bitmap = BitmapHelper.decodeSampledBitmapFromImage(mPath, mSize, mSize,
+                        mLoader.getBitmapPool());
+            } catch (OutOfMemoryError e) {
+                LogWrapper.Loge("ImageLoaderTask", "Failed to decode the bitmap due to Out of Memory Error");
+                System.gc(); // Try and start garbage collection
+            } finally {
+                decoded(bitmap);
+            }
+        }
+    };
+
+    // Caches, stores and shows a bitmap this task decoded or scaled, on the CPU stage
+    private void decoded(Bitmap bitmap) {
+        if (bitmap != null) {// Add bitmap to cache if bitmap was decoded
+            LogWrapper.Logi(TAG, "[Bitmap Height = " + bitmap.getHeight() + "]");
+            LogWrapper.Logi(TAG, "[Bitmap Width = " + bitmap.getWidth() + "]");
+            // Held for this task until it is shown
+            mLoader.holdBitmap(bitmap);
+            if (!mCancelled) {
                 mLoader.addBitmapToMemoryCache(mKey, bitmap);
             }
+            // A cancelled load's bitmap is reused once it is on disk
+            mEngine.write.execute(new StoreTask(bitmap));
+        }
+        // Can still be null here if it could not decode, ie a video file
+        finish(bitmap);
+    }
 
+    // Runs on the write stage, even if the view has moved on, the image was paid for
+    private final class StoreTask implements LoaderEngine.Droppable {
+        private final Bitmap mBitmap;
 
-            return bitmap;// Return the bitmap,
-            //can still be null here if it could not decode, ie a video file
+        StoreTask(Bitmap bitmap) {
+            mBitmap = bitmap;
+            mLoader.holdBitmap(bitmap);
+        }
 
-        } catch (OutOfMemoryError e) {
-            if (isCancelled()) return null;
-            LogWrapper.Loge("ImageLoaderTask", "Failed to decode the bitmap due to Out of Memory Error");
-            System.gc(); // Try and start garbage collection
+        public void run() {
+            try {
+                mLoader.addBitmapToDiskCache(mKey, mBitmap);
+            } finally {
+                mLoader.releaseBitmap(mBitmap);
+            }
+        }
 
-            if (isCancelled()) return null;
+        // Left unstored, it is decoded again next time
+        public void drop() {
+            mLoader.releaseBitmap(mBitmap);
         }
+    }
 
-        return null;
+    private void finish(final Bitmap bitmap) {
+        synchronized (this) {
+            mResult = bitmap;
+            mFinished = true;
+        }
+        mDone.countDown();
+        mLoader.loadFinished(mKey, this);
+        if (bitmap == null) {
+            return;
+        }
+        if (mCancelled) {
+            mLoader.releaseBitmap(bitmap);
+            return;
+        }
+        mEngine.postToMain(new Runnable() {
+            public void run() {
+                try {
+                    onPostExecute(bitmap);
+                } finally {
+                    // The views that show it hold it now
+                    mLoader.releaseBitmap(bitmap);
+                }
+            }
+        });
     }
 
-    @Override
-    // Once the image is downloaded, associates it to the imageView
-    protected void onPostExecute(Bitmap bitmap) {
-        if (isCancelled()) {
-            bitmap.recycle();
-            bitmap = null;
+    // Once the image is loaded, associates it to the target views, on the UI thread
+    private void onPostExecute(Bitmap bitmap) {
+        if (mCancelled || bitmap == null) {
+            return;
         }
 
-        if (imageViewReference != null && bitmap != null) {
-            ImageView imageView = imageViewReference.get();
+        for (ImageView imageView : targets()) {
             ImageLoaderTask bitmapDownloaderTask = ImageLoader.getImageLoaderTask(imageView);
             // Change bitmap only if this process is still associated with it
             if (this == bitmapDownloaderTask) {
+                mLoader.setShown(imageView, bitmap);
                 imageView.setImageBitmap(bitmap);
             }
+        }
+    }
+
+    /** Returns the target views that haven't been collected. */
+    private synchronized ArrayList<ImageView> targets() {
+        final ArrayList<ImageView> targets = new ArrayList<ImageView>(mTargets.size());
+        for (WeakReference<ImageView> reference : mTargets) {
+            final ImageView target = reference.get();
+            if (target != null) {
+                targets.add(target);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Cancels the load for every target. A load that is queued leaves its
+     * stage without doing any work; one that is running finishes its stage
+     * but isn't shown.
+     *
+     * @return False if the load had already finished
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        mCancelled = true;
+        if (mKey != null) {
+            // Later requests for the image start a load of their own
+            mLoader.loadFinished(mKey, this);
+        }
+        return mDone.getCount() != 0;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
 
+    /**
+     * Waits for the load to finish. The bitmap may be reused for another
+     * image once it is neither cached nor shown by the loader.
+     *
+     * @return The loaded bitmap, or null if it could not be loaded
+     * @throws CancellationException if the load was cancelled before it loaded a bitmap
+     */
+    public Bitmap get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        if (mResult == null && mCancelled) {
+            throw new CancellationException();
         }
+        return mResult;
     }
 
     /**
@@ -93,11 +413,12 @@ public class ImageLoaderTask extends AsyncTask<String, Void, Bitmap> {
         return mKey;
     }
 
+    /**
+     * @return The first target view that hasn't been collected, or null
+     */
     public ImageView getReference() {
-        if (imageViewReference != null)
-            return imageViewReference.get();
-        else
-            return null;
+        final ArrayList<ImageView> targets = targets();
+        return targets.isEmpty() ? null : targets.get(0);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the records of a {@link DiskLruCache} journal one at a time, in
+ * either the binary format ({@link BinaryJournal.Reader}) or the version 1
+ * text format ({@link TextJournalReader}). Ops are {@link BinaryJournal}'s op
+ * codes in both.
+ *
+ * <p>A record's key is available as bytes in a buffer that the next call to
+ * {@link #next} may overwrite; {@link #key} only makes a string of it when
+ * asked.
+ */
+interface JournalReader extends Closeable {
+  /**
+   * Advances to the next record. Returns false at the end of the journal,
+   * including when the last record is incomplete.
+   */
+  boolean next() throws IOException;
+
+  /** Returns true if the journal ended partway through a record. */
+  boolean isTruncated();
+
+  byte op();
+
+  String key();
+
+  /** Returns the buffer holding the key's ASCII bytes, starting at {@link #keyOffset}. */
+  byte[] keyBuffer();
+
+  int keyOffset();
+
+  int keyLength();
+
+  /** Returns true if the current record has fields left to read. */
+  boolean hasMoreFields();
+
+  /** Reads the next numeric field of the current record. */
+  long nextField() throws IOException;
+}
@@ -0,0 +1,186 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends journal records to a file using group commit.
+ *
+ * <p>Records are copied into an in-memory buffer by {@link #append}, which
+ * never blocks on I/O unless the buffer has grown past its threshold. Callers
+ * that need a record on disk then call {@link #await} with the position that
+ * {@code append} returned. The first waiter to find no write in progress
+ * becomes the leader: it swaps out the whole buffer, writes it and optionally
+ * syncs it with the monitor released, so every record appended by other
+ * threads in the meantime is made durable by the same write and sync.
+ *
+ * <p>Positions are byte offsets in the journal file. They only grow, so a
+ * caller waiting for position {@code p} is released by any write that reaches
+ * {@code p} or beyond.
+ */
+final class JournalWriter implements Closeable {
+  /** Pending bytes are written inline by {@link #append} beyond this size. */
+  private static final int WRITE_THRESHOLD = 8192;
+
+  private final FileOutputStream out;
+
+  /** Records appended but not yet written. Guarded by this. */
+  private byte[] buffer = new byte[WRITE_THRESHOLD];
+  private int count;
+  /** An empty buffer to swap in while the leader writes the full one. */
+  private byte[] spare = new byte[WRITE_THRESHOLD];
+
+  /** Position of the end of the buffered records. */
+  private long appended;
+  /** Position up to which records have been handed to the filesystem. */
+  private long written;
+  /** Position up to which records have been synced to the device. */
+  private long synced;
+  /** True while a leader is writing with the monitor released. */
+  private boolean writing;
+  private IOException failure;
+  private boolean closed;
+
+  /** Opens {@code file} for appending records after its current contents. */
+  JournalWriter(File file) throws IOException {
+    this.out = new FileOutputStream(file, true);
+    this.appended = this.written = this.synced = file.length();
+  }
+
+  /**
+   * Buffers {@code length} bytes of {@code record} and returns the position
+   * that must be written to make the record visible in the file.
+   */
+  long append(byte[] record, int offset, int length) throws IOException {
+    boolean writeNow;
+    long position;
+    synchronized (this) {
+      checkOpen();
+      if (count + length > buffer.length) {
+        byte[] grown = new byte[Math.max(count + length, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        buffer = grown;
+      }
+      System.arraycopy(record, offset, buffer, count, length);
+      count += length;
+      appended += length;
+      position = appended;
+      writeNow = count >= WRITE_THRESHOLD && !writing;
+    }
+    if (writeNow) {
+      await(position, false);
+    }
+    return position;
+  }
+
+  /** Returns the position of the end of every record appended so far. */
+  synchronized long position() {
+    return appended;
+  }
+
+  /**
+   * Blocks until every record up to {@code position} has been handed to the
+   * filesystem, and synced to the device if {@code sync} is true.
+   */
+  void await(long position, boolean sync) throws IOException {
+    byte[] toWrite;
+    int toWriteCount;
+    long target;
+    synchronized (this) {
+      while (true) {
+        if (failure != null) {
+          throw failure;
+        }
+        if ((sync ? synced : written) >= position) {
+          return;
+        }
+        if (!writing) {
+          break;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("interrupted waiting for the journal");
+        }
+      }
+      checkOpen();
+
+      // Become the leader for everything buffered so far.
+      writing = true;
+      toWrite = buffer;
+      toWriteCount = count;
+      target = appended;
+      buffer = spare;
+      count = 0;
+    }
+
+    IOException error = null;
+    try {
+      out.write(toWrite, 0, toWriteCount);
+      if (sync) {
+        out.getFD().sync();
+      }
+    } catch (IOException e) {
+      error = e;
+    }
+
+    synchronized (this) {
+      writing = false;
+      if (toWrite.length <= WRITE_THRESHOLD * 4) {
+        spare = toWrite; // Keep the default-sized buffers, let big ones go.
+      } else {
+        spare = new byte[WRITE_THRESHOLD];
+      }
+      if (error != null) {
+        failure = error;
+      } else {
+        written = target;
+        if (sync) {
+          synced = target;
+        }
+      }
+      notifyAll();
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /** Hands every buffered record to the filesystem. */
+  void flush() throws IOException {
+    await(position(), false);
+  }
+
+  /** Writes and syncs every buffered record. */
+  void sync() throws IOException {
+    await(position(), true);
+  }
+
+  /**
+   * Writes the remaining records and closes the file, syncing it first if
+   * {@code sync} is true.
+   */
+  void close(boolean sync) throws IOException {
+    try {
+      await(position(), sync);
+    } finally {
+      synchronized (this) {
+        closed = true;
+      }
+      out.close();
+    }
+  }
+
+  public void close() throws IOException {
+    close(false);
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("journal writer is closed");
+    }
+  }
+}
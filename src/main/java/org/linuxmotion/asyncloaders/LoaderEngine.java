@@ -0,0 +1,248 @@
+package org.linuxmotion.asyncloaders;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Runs image loads in stages, each with its own threads and its own queue:
+ * disk cache reads on the {@link #io} stage, decoding on the {@link #cpu}
+ * stage and compressing and writing on the {@link #write} stage. A slow stage
+ * only holds up the loads that are waiting for it.
+ *
+ * Every queue is last in, first out, so that when a list is scrolled the
+ * views that just came on screen are loaded before the ones that went past.
+ * Loads whose views were reused are cancelled and leave each stage as soon as
+ * they reach its head. A queue holds at most a fixed number of tasks; once it
+ * is full, queuing another drops the oldest, whose view has most likely
+ * scrolled away long ago, instead of letting the backlog grow.
+ */
+public class LoaderEngine {
+    private static final String TAG = LoaderEngine.class.getSimpleName();
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    // The most tasks waiting in each stage by default, a few screens of thumbnails
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private static LoaderEngine sDefault;
+
+    /** Reads from the disk cache, which mostly waits on storage. */
+    final Stage io;
+    /** Decodes source images, one thread per core. */
+    final Stage cpu;
+    /** Compresses and writes decoded images to the disk cache. */
+    final Stage write;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param ioThreads     The most disk cache reads at once
+     * @param cpuThreads    The most decodes at once
+     * @param writeThreads  The most disk cache writes at once
+     */
+    public LoaderEngine(int ioThreads, int cpuThreads, int writeThreads) {
+        this(ioThreads, cpuThreads, writeThreads, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param ioThreads     The most disk cache reads at once
+     * @param cpuThreads    The most decodes at once
+     * @param writeThreads  The most disk cache writes at once
+     * @param queueCapacity The most tasks waiting in each stage before the oldest are dropped
+     */
+    public LoaderEngine(int ioThreads, int cpuThreads, int writeThreads, int queueCapacity) {
+        io = new Stage("io", ioThreads, queueCapacity, Process.THREAD_PRIORITY_BACKGROUND);
+        cpu = new Stage("cpu", cpuThreads, queueCapacity, Process.THREAD_PRIORITY_BACKGROUND);
+        write = new Stage("write", writeThreads, queueCapacity, Process.THREAD_PRIORITY_LOWEST);
+    }
+
+    /**
+     * @return The engine the loaders share unless they are given one, with
+     * two disk readers, a decoder per core and one writer
+     */
+    public static synchronized LoaderEngine getDefault() {
+        if (sDefault == null) {
+            sDefault = new LoaderEngine(2, Math.max(1, CPU_COUNT), 1);
+        }
+        return sDefault;
+    }
+
+    /** Runs {@code runnable} on the UI thread. */
+    void postToMain(Runnable runnable) {
+        mMainHandler.post(runnable);
+    }
+
+    /** Stops the stage threads once their queues are empty. */
+    public void shutdown() {
+        io.mExecutor.shutdown();
+        cpu.mExecutor.shutdown();
+        write.mExecutor.shutdown();
+    }
+
+    /**
+     * A task that is told when a full stage drops it, so that it can let go
+     * of what it holds. Tasks that aren't are dropped silently.
+     */
+    interface Droppable extends Runnable {
+        /** Called instead of {@link #run}, on the thread that queued a newer task. */
+        void drop();
+    }
+
+    /** One stage of the engine: a bounded set of threads over a bounded LIFO queue. */
+    static final class Stage {
+        private final ThreadPoolExecutor mExecutor;
+
+        private Stage(final String name, int threads, int queueCapacity, final int priority) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException(name + " threads <= 0");
+            }
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException(name + " queueCapacity <= 0");
+            }
+            final AtomicInteger count = new AtomicInteger();
+            // Started as tasks come and then kept; idle core threads can only
+            // time out from Android 2.3
+            mExecutor = new ThreadPoolExecutor(threads, threads, 0L,
+                    TimeUnit.SECONDS, new LifoQueue(queueCapacity), new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(priority);
+                            runnable.run();
+                        }
+                    }, TAG + " " + name + " #" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        void execute(Runnable runnable) {
+            mExecutor.execute(runnable);
+        }
+    }
+
+    /**
+     * Hands out the most recently queued task first. When it is full, a new
+     * task takes the place of the oldest one, which is {@link Droppable#drop
+     * dropped}, so queuing never blocks or fails. A list guarded by the
+     * queue's monitor, as the JDK's deques only exist from Android 2.3.
+     */
+    private static final class LifoQueue extends AbstractQueue<Runnable>
+            implements BlockingQueue<Runnable> {
+        // Newest first
+        private final LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+        private final int mCapacity;
+
+        LifoQueue(int capacity) {
+            mCapacity = capacity;
+        }
+
+        public boolean offer(Runnable runnable) {
+            if (runnable == null) {
+                throw new NullPointerException();
+            }
+            final Runnable oldest;
+            synchronized (this) {
+                mTasks.addFirst(runnable);
+                oldest = mTasks.size() > mCapacity ? mTasks.removeLast() : null;
+                notify();
+            }
+            // Outside the monitor, dropping finishes the load
+            if (oldest instanceof Droppable) {
+                ((Droppable) oldest).drop();
+            }
+            return true;
+        }
+
+        public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+            return offer(runnable);
+        }
+
+        public void put(Runnable runnable) {
+            offer(runnable);
+        }
+
+        public synchronized Runnable poll() {
+            return mTasks.isEmpty() ? null : mTasks.removeFirst();
+        }
+
+        public synchronized Runnable peek() {
+            return mTasks.isEmpty() ? null : mTasks.getFirst();
+        }
+
+        public synchronized Runnable take() throws InterruptedException {
+            while (mTasks.isEmpty()) {
+                wait();
+            }
+            return mTasks.removeFirst();
+        }
+
+        public synchronized Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long remaining = unit.toNanos(timeout);
+            final long deadline = System.nanoTime() + remaining;
+            while (mTasks.isEmpty()) {
+                if (remaining <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = deadline - System.nanoTime();
+            }
+            return mTasks.removeFirst();
+        }
+
+        public synchronized int size() {
+            return mTasks.size();
+        }
+
+        public synchronized int remainingCapacity() {
+            return Math.max(0, mCapacity - mTasks.size());
+        }
+
+        public synchronized boolean remove(Object task) {
+            return mTasks.remove(task);
+        }
+
+        public int drainTo(Collection<? super Runnable> to) {
+            return drainTo(to, Integer.MAX_VALUE);
+        }
+
+        public synchronized int drainTo(Collection<? super Runnable> to, int maxTasks) {
+            int drained = 0;
+            while (drained < maxTasks && !mTasks.isEmpty()) {
+                to.add(mTasks.removeFirst());
+                drained++;
+            }
+            return drained;
+        }
+
+        /** Iterates over a copy, newest first; removing through it removes from the queue. */
+        public synchronized Iterator<Runnable> iterator() {
+            final Iterator<Runnable> copy = new ArrayList<Runnable>(mTasks).iterator();
+            return new Iterator<Runnable>() {
+                private Runnable mLast;
+
+                public boolean hasNext() {
+                    return copy.hasNext();
+                }
+
+                public Runnable next() {
+                    return mLast = copy.next();
+                }
+
+                public void remove() {
+                    LifoQueue.this.remove(mLast);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stores small cache values by appending them to large pack files, so that a
+ * value doesn't cost a file of its own. Used by {@link DiskLruCache} when it
+ * is opened with {@link DiskLruCache.Storage#PACK}.
+ *
+ * <p>Values are addressed by a location that combines the pack's id and the
+ * value's offset in it (see {@link #location}). The store doesn't know which
+ * values are live: its owner tells it about every value it keeps with {@link
+ * #recoverLive} when opening and with {@link #release} when a value is
+ * dropped. A pack that isn't being appended to is deleted once none of its
+ * values are live, and is offered for compaction by {@link
+ * #compactionCandidates} once most of its bytes are dead. The files of
+ * deleted packs are left to the owner, which takes them with {@link
+ * #takeDeadPacks} and unlinks them when it suits it.
+ *
+ * <p>Appends are not synced; call {@link #sync} before publishing a location
+ * that must survive a crash.
+ */
+final class PackStore {
+  /** Appends start a new pack once the current one reaches this size. */
+  static final long PACK_FILE_SIZE = 4 * 1024 * 1024;
+  /** Packs with less than this fraction of live bytes are compacted. */
+  static final float MIN_LIVE_RATIO = 0.5f;
+
+  /** Pack file names can't collide with "key.index" value files. */
+  private static final String PACK_FILE_PREFIX = "pack-";
+  private static final String PACK_FILE_SUFFIX = ".dat";
+  private static final int OFFSET_BITS = 40;
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+  private final File directory;
+
+  /** Sizes and live bytes of every pack, by id. Guarded by this. */
+  private final TreeMap<Integer, Pack> packs = new TreeMap<Integer, Pack>();
+  private int activeId = -1;
+  private FileOutputStream active;
+  private boolean activeDirty;
+  private boolean closed;
+  /** Files of packs dropped from {@link #packs}, not yet taken by the owner. */
+  private final List<File> deadPacks = new ArrayList<File>();
+
+  private static final class Pack {
+    long length;
+    long live;
+  }
+
+  PackStore(File directory) {
+    this.directory = directory;
+  }
+
+  static long location(int pack, long offset) {
+    return ((long) pack << OFFSET_BITS) | offset;
+  }
+
+  static int packOf(long location) {
+    return (int) (location >>> OFFSET_BITS);
+  }
+
+  static long offsetOf(long location) {
+    return location & OFFSET_MASK;
+  }
+
+  File packFile(int pack) {
+    return new File(directory, PACK_FILE_PREFIX + pack + PACK_FILE_SUFFIX);
+  }
+
+  /** Records that a value recovered from the journal is live. */
+  synchronized void recoverLive(long location, long length) {
+    Pack pack = packs.get(packOf(location));
+    if (pack == null) {
+      pack = new Pack();
+      packs.put(packOf(location), pack);
+    }
+    pack.live += length;
+  }
+
+  /**
+   * Matches the recovered values against the packs on disk. Packs without
+   * live values are deleted, and appends go to a new pack.
+   */
+  synchronized void open() throws IOException {
+    String[] names = directory.list();
+    int maxId = -1;
+    if (names != null) {
+      for (String name : names) {
+        if (!name.startsWith(PACK_FILE_PREFIX) || !name.endsWith(PACK_FILE_SUFFIX)) {
+          continue;
+        }
+        int id;
+        try {
+          id = Integer.parseInt(name.substring(
+              PACK_FILE_PREFIX.length(), name.length() - PACK_FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        maxId = Math.max(maxId, id);
+        File file = new File(directory, name);
+        Pack pack = packs.get(id);
+        if (pack == null) {
+          file.delete(); // Nothing in it is live.
+        } else {
+          pack.length = file.length();
+        }
+      }
+    }
+    // A pack that's referenced but missing loses its values; get() reports
+    // them as absent.
+    for (Iterator<Map.Entry<Integer, Pack>> i = packs.entrySet().iterator(); i.hasNext(); ) {
+      Map.Entry<Integer, Pack> entry = i.next();
+      maxId = Math.max(maxId, entry.getKey());
+      if (entry.getValue().length == 0) {
+        i.remove();
+      }
+    }
+    activeId = maxId; // The next append starts pack maxId + 1.
+  }
+
+  /**
+   * Appends {@code length} bytes of {@code data} to the active pack and
+   * returns their location.
+   */
+  synchronized long append(byte[] data, int offset, int length) throws IOException {
+    if (closed) {
+      throw new IOException("pack store is closed");
+    }
+    Pack pack = packs.get(activeId);
+    if (active == null || pack == null || pack.length + length > PACK_FILE_SIZE) {
+      pack = startPack();
+    }
+    long valueOffset = pack.length;
+    try {
+      active.write(data, offset, length);
+    } catch (IOException e) {
+      // The pack's length is unknown now, start over in a new one.
+      Util.closeQuietly(active);
+      active = null;
+      pack.length = packFile(activeId).length();
+      throw e;
+    }
+    pack.length += length;
+    pack.live += length;
+    activeDirty = true;
+    return location(activeId, valueOffset);
+  }
+
+  private Pack startPack() throws IOException {
+    if (active != null) {
+      if (activeDirty) {
+        active.getFD().sync();
+      }
+      active.close();
+      active = null;
+      deleteIfDead(activeId);
+    }
+    int id = activeId + 1;
+    File file = packFile(id);
+    FileOutputStream out;
+    try {
+      out = new FileOutputStream(file);
+    } catch (FileNotFoundException e) {
+      // Attempt to recreate the cache directory.
+      directory.mkdirs();
+      out = new FileOutputStream(file);
+    }
+    active = out;
+    activeId = id;
+    activeDirty = false;
+    Pack pack = new Pack();
+    packs.put(id, pack);
+    return pack;
+  }
+
+  /** Returns a stream over the {@code length} byte value at {@code location}. */
+  InputStream open(long location, long length) throws IOException {
+    FileInputStream in = new FileInputStream(packFile(packOf(location)));
+    try {
+      in.getChannel().position(offsetOf(location));
+    } catch (IOException e) {
+      Util.closeQuietly(in);
+      throw e;
+    }
+    return new ValueInputStream(in, length);
+  }
+
+  /** Reads the {@code length} byte value at {@code location} into memory. */
+  byte[] read(long location, long length) throws IOException {
+    byte[] data = new byte[(int) length];
+    InputStream in = open(location, length);
+    try {
+      for (int read = 0; read < data.length; ) {
+        int count = in.read(data, read, data.length - read);
+        if (count == -1) {
+          throw new IOException("pack " + packOf(location) + " is truncated");
+        }
+        read += count;
+      }
+    } finally {
+      Util.closeQuietly(in);
+    }
+    return data;
+  }
+
+  /**
+   * Marks the value at {@code location} dead. Its pack is deleted if it has
+   * no live values left and isn't being appended to. Returns true if the
+   * pack is left worth compacting.
+   */
+  synchronized boolean release(long location, long length) {
+    int id = packOf(location);
+    Pack pack = packs.get(id);
+    if (pack == null) {
+      return false;
+    }
+    pack.live -= length;
+    return !deleteIfDead(id) && isSparse(id, pack);
+  }
+
+  private boolean deleteIfDead(int id) {
+    Pack pack = packs.get(id);
+    if (pack != null && pack.live <= 0 && (id != activeId || active == null)) {
+      packs.remove(id);
+      if (closed) {
+        packFile(id).delete(); // The owner is done taking them.
+      } else {
+        deadPacks.add(packFile(id));
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the files of the packs that died since the last call, for the
+   * owner to delete. Their ids aren't reused while the store is open.
+   */
+  synchronized List<File> takeDeadPacks() {
+    if (deadPacks.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<File> result = new ArrayList<File>(deadPacks);
+    deadPacks.clear();
+    return result;
+  }
+
+  private boolean isSparse(int id, Pack pack) {
+    return id != activeId && pack.live < pack.length * MIN_LIVE_RATIO;
+  }
+
+  /** Returns the ids of the packs that are worth compacting because most of their bytes are dead. */
+  synchronized int[] compactionCandidates() {
+    int[] result = new int[packs.size()];
+    int count = 0;
+    for (Map.Entry<Integer, Pack> entry : packs.entrySet()) {
+      if (isSparse(entry.getKey(), entry.getValue())) {
+        result[count++] = entry.getKey();
+      }
+    }
+    int[] candidates = new int[count];
+    System.arraycopy(result, 0, candidates, 0, count);
+    return candidates;
+  }
+
+  /** Syncs the values appended since the last sync. */
+  void sync() throws IOException {
+    FileOutputStream out;
+    synchronized (this) {
+      if (!activeDirty) {
+        return;
+      }
+      out = active;
+      activeDirty = false;
+    }
+    try {
+      out.getFD().sync();
+    } catch (IOException e) {
+      synchronized (this) {
+        if (out != active) {
+          return; // Rolled over to a new pack, which synced this one first.
+        }
+        activeDirty = true;
+      }
+      throw e;
+    }
+  }
+
+  synchronized void close() throws IOException {
+    closed = true;
+    if (active != null) {
+      FileOutputStream out = active;
+      active = null;
+      try {
+        if (activeDirty) {
+          out.getFD().sync();
+        }
+      } finally {
+        out.close();
+      }
+      deleteIfDead(activeId);
+    }
+    // Nobody takes them after this.
+    for (File file : deadPacks) {
+      file.delete();
+    }
+    deadPacks.clear();
+  }
+
+  /** Reads one value from its pack. */
+  static final class ValueInputStream extends FilterInputStream {
+    private final FileInputStream file;
+    private long remaining;
+
+    private ValueInputStream(FileInputStream in, long length) {
+      super(in);
+      this.file = in;
+      this.remaining = length;
+    }
+
+    /** Returns the pack file's stream, positioned at the next unread byte of the value. */
+    FileInputStream getFile() {
+      return file;
+    }
+
+    @Override public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int result = in.read();
+      if (result != -1) {
+        remaining--;
+      }
+      return result;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int count) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int result = in.read(buffer, offset, (int) Math.min(count, remaining));
+      if (result != -1) {
+        remaining -= result;
+      }
+      return result;
+    }
+
+    @Override public long skip(long count) throws IOException {
+      long result = in.skip(Math.min(count, remaining));
+      remaining -= result;
+      return result;
+    }
+
+    @Override public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override public boolean markSupported() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package org.linuxmotion.asyncloaders;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A memory cache whose lookups take no lock, for callers such as the UI thread
+ * that must never wait on a writer.
+ *
+ * <p>Values are held in a concurrent map. The recency order lives in {@link
+ * #STRIPES} stripes, each an access ordered map of its share of the keys
+ * behind a lock of its own. A hit moves its key to the end of its stripe only
+ * if that stripe's lock is free, so a hit never waits; under contention a
+ * read is simply not recorded. Writers take their stripe's lock. Every
+ * recorded access also takes a stamp from a clock shared by the stripes, and
+ * each stripe publishes the stamp of its least recently used entry. When the
+ * cache is over its maximum size, the stripe whose eldest entry has the
+ * oldest stamp gives it up, so eviction is least recently used across the
+ * whole cache, apart from the reads that weren't recorded.
+ */
+public abstract class StripedLruCache<K, V> {
+    /** The number of stripes; a power of two. */
+    static final int STRIPES = 16;
+
+    private final ConcurrentHashMap<K, V> values;
+    private final Stripe<K>[] stripes;
+    private final long maxSize;
+    private final AtomicLong size = new AtomicLong();
+    /** Stamps accesses, so that the stripes' eldest entries can be compared. */
+    private final AtomicLong clock = new AtomicLong();
+
+    private static final class Stripe<K> {
+        final ReentrantLock lock = new ReentrantLock();
+        /** This stripe's keys and the sizes of their values, least recently used first. */
+        final LinkedHashMap<K, Node> order = new LinkedHashMap<K, Node>(16, 0.75f, true);
+        /** The stamp of the first entry of {@link #order}, or Long.MAX_VALUE if it is empty. */
+        volatile long eldestStamp = Long.MAX_VALUE;
+
+        /** Makes {@code key} the most recently used entry, if it is here. Needs the lock. */
+        void touch(K key, long stamp) {
+            Node node = order.get(key); // Moves it to the end.
+            if (node != null) {
+                node.stamp = stamp;
+                updateEldest();
+            }
+        }
+
+        /** Publishes the stamp of the eldest entry after {@link #order} changed. Needs the lock. */
+        void updateEldest() {
+            eldestStamp = order.isEmpty() ? Long.MAX_VALUE : order.values().iterator().next().stamp;
+        }
+    }
+
+    private static final class Node {
+        final long size;
+        long stamp;
+
+        Node(long size, long stamp) {
+            this.size = size;
+            this.stamp = stamp;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public StripedLruCache(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.values = new ConcurrentHashMap<K, V>(64, 0.75f, STRIPES);
+        this.stripes = (Stripe<K>[]) new Stripe<?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe<K>();
+        }
+    }
+
+    /** Returns the size of {@code value} in the units of the maximum size. */
+    protected abstract long sizeOf(K key, V value);
+
+    /**
+     * Called after {@code oldValue} left the cache, without any lock held.
+     * {@code evicted} is true if it was dropped to make room, false if it was
+     * replaced by {@code newValue} or removed.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /** Returns the value for {@code key}, or null. Never waits on a lock. */
+    public V get(K key) {
+        V value = values.get(key);
+        if (value != null) {
+            Stripe<K> stripe = stripeFor(key);
+            if (stripe.lock.tryLock()) {
+                try {
+                    stripe.touch(key, clock.incrementAndGet());
+                } finally {
+                    stripe.lock.unlock();
+                }
+            }
+        }
+        return value;
+    }
+
+    /** Caches {@code value} for {@code key} and returns the value it replaced, or null. */
+    public V put(K key, V value) {
+        V previous = insert(key, value, true);
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize();
+        return previous;
+    }
+
+    /**
+     * Caches {@code value} for {@code key} unless it already has a value.
+     * Returns the value that was already cached, or null if {@code value} was
+     * added.
+     */
+    public V putIfAbsent(K key, V value) {
+        V existing = insert(key, value, false);
+        if (existing == null) {
+            trimToSize();
+        }
+        return existing;
+    }
+
+    private V insert(K key, V value, boolean replace) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        long valueSize = sizeOf(key, value);
+        Stripe<K> stripe = stripeFor(key);
+        stripe.lock.lock();
+        try {
+            V previous = values.get(key);
+            if (previous != null && !replace) {
+                stripe.touch(key, clock.incrementAndGet());
+                return previous;
+            }
+            values.put(key, value);
+            Node replaced = stripe.order.put(key, new Node(valueSize, clock.incrementAndGet()));
+            stripe.updateEldest();
+            size.addAndGet(valueSize - (replaced != null ? replaced.size : 0));
+            return previous;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /** Removes the value for {@code key} and returns it, or null if there was none. */
+    public V remove(K key) {
+        Stripe<K> stripe = stripeFor(key);
+        V previous;
+        stripe.lock.lock();
+        try {
+            previous = values.remove(key);
+            Node removed = stripe.order.remove(key);
+            if (removed != null) {
+                size.addAndGet(-removed.size);
+                stripe.updateEldest();
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    /** Evicts every value. */
+    public void evictAll() {
+        for (Stripe<K> stripe : stripes) {
+            List<K> keys = new ArrayList<K>();
+            List<V> evicted = new ArrayList<V>();
+            stripe.lock.lock();
+            try {
+                for (Map.Entry<K, Node> entry : stripe.order.entrySet()) {
+                    keys.add(entry.getKey());
+                    evicted.add(values.remove(entry.getKey()));
+                    size.addAndGet(-entry.getValue().size);
+                }
+                stripe.order.clear();
+                stripe.updateEldest();
+            } finally {
+                stripe.lock.unlock();
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                entryRemoved(true, keys.get(i), evicted.get(i), null);
+            }
+        }
+    }
+
+    /** Returns the sum of the sizes of the cached values. */
+    public long size() {
+        return size.get();
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Evicts the entry with the oldest stamp, one at a time, until the cache
+     * fits. The stripes' eldest stamps are compared without their locks; a
+     * stripe that changed meanwhile still gives up its own eldest entry.
+     */
+    private void trimToSize() {
+        while (size.get() > maxSize) {
+            Stripe<K> stripe = null;
+            long oldest = Long.MAX_VALUE;
+            for (Stripe<K> candidate : stripes) {
+                long stamp = candidate.eldestStamp;
+                if (stamp < oldest) {
+                    oldest = stamp;
+                    stripe = candidate;
+                }
+            }
+            if (stripe == null) {
+                return; // Emptied meanwhile.
+            }
+            K key = null;
+            V value = null;
+            stripe.lock.lock();
+            try {
+                Iterator<Map.Entry<K, Node>> eldest = stripe.order.entrySet().iterator();
+                if (eldest.hasNext()) {
+                    Map.Entry<K, Node> entry = eldest.next();
+                    key = entry.getKey();
+                    value = values.remove(key);
+                    size.addAndGet(-entry.getValue().size);
+                    eldest.remove();
+                    stripe.updateEldest();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+            if (key != null) {
+                entryRemoved(true, key, value, null);
+            }
+        }
+    }
+
+    private Stripe<K> stripeFor(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+}
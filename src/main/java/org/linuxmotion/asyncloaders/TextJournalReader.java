@@ -0,0 +1,241 @@
+package org.linuxmotion.asyncloaders;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a version 1 text journal, so that {@link DiskLruCache} can migrate
+ * old caches to the binary journal. The format is described in {@link
+ * DiskLruCache}.
+ *
+ * <p>Lines are scanned as bytes in a reusable buffer. Ops are recognized and
+ * lengths parsed in place, so reading a record allocates nothing unless its
+ * key is asked for as a string. A line ends with "\n" or "\r\n"; an
+ * unterminated last line is the product of an interrupted append and is
+ * reported through {@link #isTruncated}.
+ */
+final class TextJournalReader implements JournalReader {
+  // Spelled out, String.getBytes(Charset) only exists from Android 2.3.
+  private static final byte[] CLEAN = {'C', 'L', 'E', 'A', 'N'};
+  private static final byte[] DIRTY = {'D', 'I', 'R', 'T', 'Y'};
+  private static final byte[] REMOVE = {'R', 'E', 'M', 'O', 'V', 'E'};
+  private static final byte[] READ = {'R', 'E', 'A', 'D'};
+
+  private final InputStream in;
+  private final int valueCount;
+  private final byte[] buf = new byte[8192];
+  private int pos;
+  private int end;
+  /** The current line, without its terminator. */
+  private byte[] line = new byte[128];
+  private int lineLength;
+  private boolean truncated;
+
+  private byte op;
+  private int keyOffset;
+  private int keyLength;
+  private String key;
+  private final long[] fields;
+  private int fieldCount;
+  private int fieldIndex;
+
+  TextJournalReader(InputStream in, int valueCount) {
+    this.in = in;
+    this.valueCount = valueCount;
+    this.fields = new long[valueCount];
+  }
+
+  /**
+   * Reads and validates the journal header.
+   *
+   * @throws IOException if the header is missing or doesn't match.
+   */
+  void readHeader(int appVersion) throws IOException {
+    String magic = readHeaderLine();
+    String version = readHeaderLine();
+    String appVersionString = readHeaderLine();
+    String valueCountString = readHeaderLine();
+    String blank = readHeaderLine();
+    if (!DiskLruCache.MAGIC.equals(magic)
+        || !DiskLruCache.VERSION_1.equals(version)
+        || !Integer.toString(appVersion).equals(appVersionString)
+        || !Integer.toString(valueCount).equals(valueCountString)
+        || !"".equals(blank)) {
+      throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
+          + valueCountString + ", " + blank + "]");
+    }
+  }
+
+  private String readHeaderLine() throws IOException {
+    return readLine() ? Util.asciiString(line, 0, lineLength) : null;
+  }
+
+  public boolean next() throws IOException {
+    if (!readLine()) {
+      return false;
+    }
+    key = null;
+    int space = indexOfSpace(0);
+    if (space == lineLength) {
+      throw unexpectedLine();
+    }
+    keyOffset = space + 1;
+    int keyEnd = indexOfSpace(keyOffset);
+    keyLength = keyEnd - keyOffset;
+    if (keyLength == 0) {
+      throw unexpectedLine();
+    }
+
+    fieldCount = 0;
+    fieldIndex = 0;
+    if (matches(CLEAN, space)) {
+      op = BinaryJournal.CLEAN;
+      for (int start = keyEnd + 1; start <= lineLength; ) {
+        if (fieldCount == valueCount) {
+          throw unexpectedLine();
+        }
+        int fieldEnd = indexOfSpace(start);
+        fields[fieldCount++] = parseLength(start, fieldEnd);
+        start = fieldEnd + 1;
+      }
+      if (fieldCount != valueCount) {
+        throw unexpectedLine();
+      }
+      return true;
+    }
+    if (keyEnd != lineLength) {
+      throw unexpectedLine(); // Only CLEAN lines have fields.
+    }
+    if (matches(DIRTY, space)) {
+      op = BinaryJournal.DIRTY;
+    } else if (matches(REMOVE, space)) {
+      op = BinaryJournal.REMOVE;
+    } else if (matches(READ, space)) {
+      op = BinaryJournal.READ;
+    } else {
+      throw unexpectedLine();
+    }
+    return true;
+  }
+
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public byte op() {
+    return op;
+  }
+
+  public String key() {
+    if (key == null) {
+      key = Util.asciiString(line, keyOffset, keyLength);
+    }
+    return key;
+  }
+
+  public byte[] keyBuffer() {
+    return line;
+  }
+
+  public int keyOffset() {
+    return keyOffset;
+  }
+
+  public int keyLength() {
+    return keyLength;
+  }
+
+  public boolean hasMoreFields() {
+    return fieldIndex < fieldCount;
+  }
+
+  public long nextField() throws IOException {
+    if (fieldIndex == fieldCount) {
+      throw new IOException("unexpected end of journal line");
+    }
+    return fields[fieldIndex++];
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Reads the next line into {@link #line}. Returns false at the end of the
+   * journal, including when the last line is unterminated.
+   */
+  private boolean readLine() throws IOException {
+    lineLength = 0;
+    while (true) {
+      if (pos == end) {
+        int result = in.read(buf, 0, buf.length);
+        if (result == -1) {
+          truncated = lineLength > 0;
+          return false;
+        }
+        pos = 0;
+        end = result;
+      }
+      int start = pos;
+      while (pos < end && buf[pos] != '\n') {
+        pos++;
+      }
+      int count = pos - start;
+      if (lineLength + count > line.length) {
+        byte[] grown = new byte[Math.max(lineLength + count, line.length * 2)];
+        System.arraycopy(line, 0, grown, 0, lineLength);
+        line = grown;
+      }
+      System.arraycopy(buf, start, line, lineLength, count);
+      lineLength += count;
+      if (pos < end) {
+        pos++; // Consume the '\n'.
+        if (lineLength > 0 && line[lineLength - 1] == '\r') {
+          lineLength--;
+        }
+        return true;
+      }
+    }
+  }
+
+  /** Returns the index of the first space at or after {@code from}, or the line's length. */
+  private int indexOfSpace(int from) {
+    int i = from;
+    while (i < lineLength && line[i] != ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private boolean matches(byte[] word, int length) {
+    if (length != word.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (line[i] != word[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private long parseLength(int start, int end) throws IOException {
+    if (start == end) {
+      throw unexpectedLine();
+    }
+    long result = 0;
+    for (int i = start; i < end; i++) {
+      int digit = line[i] - '0';
+      if (digit < 0 || digit > 9 || result > (Long.MAX_VALUE - digit) / 10) {
+        throw unexpectedLine();
+      }
+      result = result * 10 + digit;
+    }
+    return result;
+  }
+
+  private IOException unexpectedLine() {
+    return new IOException(
+        "unexpected journal line: " + Util.asciiString(line, 0, lineLength));
+  }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 
 /** Junk drawer of utility methods. */
@@ -15,6 +16,18 @@ public final class Util {
   private Util() {
   }
 
+  /**
+   * Decodes {@code length} ASCII bytes of {@code bytes}. The String
+   * constructors that take a Charset only exist from Android 2.3.
+   */
+  static String asciiString(byte[] bytes, int offset, int length) {
+    try {
+      return new String(bytes, offset, length, "US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e); // Every Java platform has US-ASCII.
+    }
+  }
+
   static String readFully(Reader reader) throws IOException {
     try {
       StringWriter writer = new StringWriter();
@@ -32,17 +45,21 @@ public final class Util {
   /**
    * Deletes the contents of {@code dir}. Throws an IOException if any file
    * could not be deleted, or if {@code dir} is not a readable directory.
+   * Files that a background trash delete removes first are skipped.
    */
   static void deleteContents(File dir) throws IOException {
     File[] files = dir.listFiles();
     if (files == null) {
+      if (!dir.exists()) {
+        return;
+      }
       throw new IOException("not a readable directory: " + dir);
     }
     for (File file : files) {
       if (file.isDirectory()) {
         deleteContents(file);
       }
-      if (!file.delete()) {
+      if (!file.delete() && file.exists()) {
         throw new IOException("failed to delete file: " + file);
       }
     }